@@ -0,0 +1,82 @@
+package com.example.camera.benchmark;
+
+import com.example.camera.tool.FileTransfer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Utils.copyFile() (FileTransfer, channel transfer and atomic rename)
+ * against a plain stream copy. Files have the size of camera JPEGs:
+ * about 0.4 MB per megapixel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class CopyFileBenchmark {
+
+    @Param({"2", "12", "48"})
+    int megapixels;
+
+    private File mDir;
+    private File mSource;
+    private File mDest;
+    private final byte[] mBuffer = new byte[64 * 1024];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        byte[] data = new byte[megapixels * 400 * 1024];
+        new Random(42).nextBytes(data);
+        mDir = SyntheticImages.tempDir();
+        mSource = SyntheticImages.writeFile(new File(mDir, "source.jpg"), data);
+        mDest = new File(mDir, "dest.jpg");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticImages.deleteDir(mDir);
+    }
+
+    @Benchmark
+    public long fileTransfer() throws IOException {
+        FileTransfer.copy(mSource, mDest, null);
+        return mDest.length();
+    }
+
+    @Benchmark
+    public long streamCopy() throws IOException {
+        InputStream in = new FileInputStream(mSource);
+        OutputStream out = new FileOutputStream(mDest);
+        try {
+            int n;
+            while ((n = in.read(mBuffer)) > 0) out.write(mBuffer, 0, n);
+        } finally {
+            in.close();
+            out.close();
+        }
+        return mDest.length();
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.camera.benchmark;
+
+import com.example.camera.tool.ExifOrientationReader;
+import com.example.camera.tool.JpegExif;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EXIF orientation parsing and lossless rotation (Utils.rotateJpeg):
+ * the header is parsed and patched, the scan data is streamed.
+ * readOrientation reads the APP1 header only, its cost must not grow with megapixels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g"})
+public class ExifBenchmark {
+
+    @Param({"2", "12", "48"})
+    int megapixels;
+
+    private File mDir;
+    private File mSource;
+    private File mDest;
+    private final ExifOrientationReader mUncached = new ExifOrientationReader(0);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int[] size = SyntheticImages.size(megapixels);
+        byte[] jpeg = SyntheticImages.jpeg(SyntheticImages.image(size[0], size[1]), 0.95f);
+        mDir = SyntheticImages.tempDir();
+        File plain = SyntheticImages.writeFile(new File(mDir, "plain.jpg"), jpeg);
+        // the camera writes EXIF, the encoder here does not
+        mSource = new File(mDir, "source.jpg");
+        JpegExif.rotate(plain, mSource, 90);
+        mDest = new File(mDir, "dest.jpg");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticImages.deleteDir(mDir);
+    }
+
+    @Benchmark
+    public long rotateOrientation() throws IOException {
+        JpegExif.rotate(mSource, mDest, 90);
+        return mDest.length();
+    }
+
+    @Benchmark
+    public int readOrientation() throws IOException {
+        FileInputStream in = new FileInputStream(mSource);
+        try {
+            return ExifOrientationReader.readOrientation(in.getChannel());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Includes lastModified() and length() of the cache key
+     */
+    @Benchmark
+    public int readOrientationReusedBuffers() {
+        return mUncached.getOrientation(mSource);
+    }
+}
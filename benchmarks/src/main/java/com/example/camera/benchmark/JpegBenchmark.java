@@ -0,0 +1,81 @@
+package com.example.camera.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storing the camera JPEG as is (PostProcessor.saveJpeg) against
+ * decoding and encoding it again before writing
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g"})
+public class JpegBenchmark {
+
+    @Param({"2", "12", "48"})
+    int megapixels;
+
+    private byte[] mJpeg;
+    private File mDir;
+    private File mOutput;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int[] size = SyntheticImages.size(megapixels);
+        mJpeg = SyntheticImages.jpeg(SyntheticImages.image(size[0], size[1]), 0.95f);
+        mDir = SyntheticImages.tempDir();
+        mOutput = new File(mDir, "out.jpg");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticImages.deleteDir(mDir);
+    }
+
+    @Benchmark
+    public long passThrough() throws IOException {
+        FileOutputStream out = new FileOutputStream(mOutput);
+        try {
+            out.write(mJpeg);
+        } finally {
+            out.close();
+        }
+        return mOutput.length();
+    }
+
+    @Benchmark
+    public long recompress() throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(mJpeg));
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(mOutput), 64 * 1024);
+        try {
+            SyntheticImages.writeJpeg(image, 0.95f, out);
+        } finally {
+            out.close();
+        }
+        return mOutput.length();
+    }
+}
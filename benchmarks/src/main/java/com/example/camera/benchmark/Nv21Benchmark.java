@@ -0,0 +1,77 @@
+package com.example.camera.benchmark;
+
+import com.example.camera.tool.Nv21Converter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preview frame conversion (Utils.convertNv21) on the calling thread
+ * and striped over a ForkJoinPool with a thread per core.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g"})
+public class Nv21Benchmark {
+
+    @Param({"2", "12"})
+    int megapixels;
+
+    @Param({"1", "2", "4"})
+    int sampleSize;
+
+    private int mWidth;
+    private int mHeight;
+    private byte[] mNv21;
+    private int[] mArgb;
+    private ForkJoinPool mPool;
+    private Nv21Converter mSerial;
+    private Nv21Converter mParallel;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int[] size = SyntheticImages.size(megapixels);
+        mWidth = size[0];
+        mHeight = size[1];
+        mNv21 = new byte[mWidth * mHeight * 3 / 2];
+        new Random(1).nextBytes(mNv21);
+        mArgb = new int[Nv21Converter.getOutputWidth(mWidth, sampleSize) *
+                Nv21Converter.getOutputHeight(mHeight, sampleSize)];
+        mPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        mSerial = new Nv21Converter();
+        mParallel = new Nv21Converter(mPool);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mPool.shutdown();
+    }
+
+    @Benchmark
+    public int[] serial() {
+        return mSerial.toArgb(mNv21, mWidth, mHeight, sampleSize, mArgb);
+    }
+
+    @Benchmark
+    public int[] parallel() {
+        return mParallel.toArgb(mNv21, mWidth, mHeight, sampleSize, mArgb);
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.camera.benchmark;
+
+import com.example.camera.tool.SizeSelector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preview size negotiation: the old area rule of SimpleCamera._getBestSize()
+ * against the scoring SizeSelector, bounded by 2, 12 and 48 MP
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SizeSelectionBenchmark {
+
+    // a typical supported preview list of a recent phone
+    private static final int[][] SIZES = {
+            {8000, 6000}, {4000, 3000}, {4000, 2250}, {3840, 2160}, {3264, 2448},
+            {2560, 1440}, {2400, 1080}, {2048, 1536}, {1920, 1440}, {1920, 1080},
+            {1632, 1224}, {1600, 1200}, {1440, 1080}, {1280, 960}, {1280, 720},
+            {1024, 768}, {960, 720}, {960, 540}, {800, 600}, {800, 480},
+            {720, 480}, {640, 480}, {640, 360}, {352, 288}, {320, 240},
+            {176, 144}
+    };
+
+    @Param({"2", "12", "48"})
+    int megapixels;
+
+    private int[] mWidths;
+    private int[] mHeights;
+    private int mMaxWidth;
+    private int mMaxHeight;
+    private SizeSelector mSelector;
+    private SizeSelector.Request mRequest;
+
+    @Setup
+    public void setUp() {
+        mWidths = new int[SIZES.length];
+        mHeights = new int[SIZES.length];
+        for (int i = 0; i < SIZES.length; i++) {
+            mWidths[i] = SIZES[i][0];
+            mHeights[i] = SIZES[i][1];
+        }
+        int[] bounds = SyntheticImages.size(megapixels);
+        mMaxWidth = bounds[0];
+        mMaxHeight = bounds[1];
+        mSelector = new SizeSelector();
+        mRequest = new SizeSelector.Request();
+        mRequest.surfaceWidth = 1080;
+        mRequest.surfaceHeight = 2340;
+        mRequest.maxWidth = mMaxWidth;
+        mRequest.maxHeight = mMaxHeight;
+        mRequest.streamWidth = 1920;
+        mRequest.streamHeight = 1080;
+    }
+
+    @Benchmark
+    public int bestSizeByArea() {
+        return _getBestSize(mMaxWidth, mMaxHeight, mWidths, mHeights);
+    }
+
+    @Benchmark
+    public SizeSelector.Decision sizeSelector() {
+        return mSelector.select(mWidths, mHeights, mRequest);
+    }
+
+    /**
+     * The same rule as SimpleCamera._getBestSize() over arrays
+     *
+     * @return index of the size
+     */
+    static int _getBestSize(int width, int height, int[] widths, int[] heights) {
+        int result = -1;
+        long area = (long) width * height;
+        long minArea = Long.MAX_VALUE;
+        int minSize = -1;
+        for (int i = 0; i < widths.length; i++) {
+            long newArea = (long) widths[i] * heights[i];
+            if (newArea < minArea) {
+                minArea = newArea;
+                minSize = i;
+            }
+            if (newArea <= area) {
+                if (result < 0 || newArea > (long) widths[result] * heights[result]) {
+                    result = i;
+                }
+            }
+        }
+        if (result < 0) return minSize;
+        return result;
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.camera.benchmark;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Fixed inputs, the same on every run: 4:3 frames of about 2, 12 and 48 megapixels
+ * filled with gradients and a little seeded noise, so JPEGs have realistic sizes.
+ */
+final class SyntheticImages {
+
+    private SyntheticImages() {
+    }
+
+    /**
+     * @return {width, height}
+     */
+    static int[] size(int megapixels) {
+        switch (megapixels) {
+            case 2: return new int[]{1632, 1224};
+            case 12: return new int[]{4000, 3000};
+            case 48: return new int[]{8000, 6000};
+            default: throw new IllegalArgumentException("megapixels must be 2, 12 or 48");
+        }
+    }
+
+    static int[] pixels(int width, int height) {
+        int[] pixels = new int[width * height];
+        int seed = 0x2545F491;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                seed ^= seed << 13;
+                seed ^= seed >>> 17;
+                seed ^= seed << 5;
+                int noise = seed & 0x0F;
+                int r = (x * 255 / width + noise) & 0xFF;
+                int g = (y * 255 / height + noise) & 0xFF;
+                int b = ((x + y) * 255 / (width + height) + noise) & 0xFF;
+                pixels[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    static BufferedImage image(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, pixels(width, height), 0, width);
+        return image;
+    }
+
+    static byte[] jpeg(BufferedImage image, float quality) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeJpeg(image, quality, out);
+        return out.toByteArray();
+    }
+
+    static void writeJpeg(BufferedImage image, float quality, java.io.OutputStream os)
+            throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageOutputStream out = ImageIO.createImageOutputStream(os);
+        try {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            out.close();
+            writer.dispose();
+        }
+    }
+
+    static File writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    static File tempDir() throws IOException {
+        File dir = File.createTempFile("simplecamera-bench", "");
+        if (!dir.delete() || !dir.mkdir()) throw new IOException("can not create " + dir);
+        return dir;
+    }
+
+    static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.camera.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What Utils.rotateBitmap() and mirrorBitmap() do with a Matrix, done on ARGB arrays.
+ * "pooled" writes into a reused array like the BitmapPool variants,
+ * "allocating" creates the result every time like Bitmap.createBitmap().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g"})
+public class TransformBenchmark {
+
+    @Param({"2", "12", "48"})
+    int megapixels;
+
+    private int mWidth;
+    private int mHeight;
+    private int[] mPixels;
+    private int[] mTarget;
+
+    @Setup
+    public void setUp() {
+        int[] size = SyntheticImages.size(megapixels);
+        mWidth = size[0];
+        mHeight = size[1];
+        mPixels = SyntheticImages.pixels(mWidth, mHeight);
+        mTarget = new int[mPixels.length];
+    }
+
+    @Benchmark
+    public int[] rotate90Pooled() {
+        return rotate90(mPixels, mWidth, mHeight, mTarget);
+    }
+
+    @Benchmark
+    public int[] rotate90Allocating() {
+        return rotate90(mPixels, mWidth, mHeight, new int[mPixels.length]);
+    }
+
+    @Benchmark
+    public int[] rotate180Pooled() {
+        return rotate180(mPixels, mTarget);
+    }
+
+    @Benchmark
+    public int[] mirrorHorizontalPooled() {
+        return mirror(mPixels, mWidth, mHeight, false, mTarget);
+    }
+
+    @Benchmark
+    public int[] mirrorVerticalPooled() {
+        return mirror(mPixels, mWidth, mHeight, true, mTarget);
+    }
+
+    @Benchmark
+    public int[] mirrorHorizontalAllocating() {
+        return mirror(mPixels, mWidth, mHeight, false, new int[mPixels.length]);
+    }
+
+    /**
+     * clockwise, dst is height x width
+     */
+    static int[] rotate90(int[] src, int width, int height, int[] dst) {
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            int column = height - 1 - y;
+            for (int x = 0; x < width; x++) {
+                dst[x * height + column] = src[row + x];
+            }
+        }
+        return dst;
+    }
+
+    static int[] rotate180(int[] src, int[] dst) {
+        for (int i = 0, j = src.length - 1; i < src.length; i++, j--) {
+            dst[j] = src[i];
+        }
+        return dst;
+    }
+
+    static int[] mirror(int[] src, int width, int height, boolean vertical, int[] dst) {
+        if (vertical) {
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(src, y * width, dst, (height - 1 - y) * width, width);
+            }
+        } else {
+            for (int y = 0; y < height; y++) {
+                int row = y * width;
+                for (int x = 0; x < width; x++) {
+                    dst[row + width - 1 - x] = src[row + x];
+                }
+            }
+        }
+        return dst;
+    }
+}
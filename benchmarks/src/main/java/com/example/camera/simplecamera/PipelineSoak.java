@@ -0,0 +1,200 @@
+package com.example.camera.simplecamera;
+
+import com.example.camera.tool.Telemetry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Soak test of the preview and burst pipeline on SimulatedCameraDevice:
+ * the same PreviewBufferRing and ZslBuffer as on a device, preview consumers
+ * holding frames for a while and periodic bursts shot by the BurstShooter of
+ * SimpleCamera.takeBurst(), written by BurstFileSink through the queue of PostProcessor.
+ * A single thread executor stands in for the camera thread.
+ *
+ * java -cp benchmarks/target/benchmarks.jar com.example.camera.simplecamera.PipelineSoak seconds=600
+ *
+ * Options (key=value): seconds, width, height, fps, buffers, zsl, holdMs, consumers,
+ * burstEveryMs, burstCount, burstIntervalMs, openMs, focusMs, shutterMs, workers, queue,
+ * policy (0 - BLOCK, 1 - DROP_OLDEST, 2 - REJECT)
+ */
+public class PipelineSoak {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Long> options = _parse(args);
+        long seconds = _get(options, "seconds", 60);
+        SimulatedCameraDevice.Config config = new SimulatedCameraDevice.Config();
+        config.previewWidth = (int) _get(options, "width", 1920);
+        config.previewHeight = (int) _get(options, "height", 1080);
+        config.fps = (int) _get(options, "fps", 30);
+        config.openLatencyMs = _get(options, "openMs", 300);
+        config.focusLatencyMs = _get(options, "focusMs", 150);
+        config.shutterLatencyMs = _get(options, "shutterMs", 80);
+        int buffers = (int) _get(options, "buffers", 3);
+        int zslDepth = (int) _get(options, "zsl", 2);
+        final long holdMs = _get(options, "holdMs", 20);
+        int consumers = (int) _get(options, "consumers", 1);
+        long burstEveryMs = _get(options, "burstEveryMs", 5000);
+        int burstCount = (int) _get(options, "burstCount", 10);
+        long burstIntervalMs = _get(options, "burstIntervalMs", 0);
+        int workers = (int) _get(options, "workers", 2);
+        int queue = (int) _get(options, "queue", 4);
+        BasePostProcessor.Policy policy =
+                BasePostProcessor.Policy.values()[(int) _get(options, "policy", 0)];
+
+        final Telemetry telemetry = Telemetry.getDefault();
+        long openStart = System.nanoTime();
+        final SimulatedCameraDevice device = SimulatedCameraDevice.open(config);
+        telemetry.record(Telemetry.Metric.CAMERA_OPEN_MS, (System.nanoTime() - openStart) / 1000000);
+
+        PreviewBufferRing ring = new PreviewBufferRing(buffers, config.previewWidth, config.previewHeight);
+        final ZslBuffer zsl = zslDepth == 0 ? null :
+                new ZslBuffer(zslDepth, config.previewWidth, config.previewHeight, ring.getFrameSize());
+        final ExecutorService consumerPool = Executors.newFixedThreadPool(consumers);
+        ring.setListener(new PreviewBufferRing.Listener() {
+            @Override
+            public void onPreviewFrame(final PreviewFrame frame) {
+                if (zsl != null) zsl.push(frame.mData, frame.mTimestampNs);
+                consumerPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (holdMs > 0) Thread.sleep(holdMs);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            frame.release();
+                        }
+                    }
+                });
+            }
+        });
+        ring.attach(device);
+        device.startPreview();
+
+        final File dir = File.createTempFile("simplecamera-soak", "");
+        if (!dir.delete() || !dir.mkdir()) throw new IOException("can not create " + dir);
+        BasePostProcessor postProcessor = new BasePostProcessor(workers, queue, policy);
+        ScheduledExecutorService cameraThread = Executors.newSingleThreadScheduledExecutor();
+
+        long end = System.currentTimeMillis() + seconds * 1000;
+        int burstIndex = 0;
+        BurstStats worst = null;
+        long zslHits = 0;
+        while (System.currentTimeMillis() < end) {
+            long next = System.currentTimeMillis() + burstEveryMs;
+            byte[] zslFrame = zsl == null ? null : zsl.takeNearest(System.nanoTime());
+            if (zslFrame != null) {
+                zslHits++;
+                zsl.recycle(zslFrame);
+            }
+            // a few names in turn, the disk does not fill up
+            BurstSink sink = new BurstFileSink(dir, "burst_" + burstIndex++ % 4);
+            BurstStats stats = _burst(device, burstCount, burstIntervalMs, sink,
+                    postProcessor, cameraThread);
+            if (worst == null || stats.getMaxShotTimeMs() > worst.getMaxShotTimeMs()) worst = stats;
+            long sleep = Math.min(next, end) - System.currentTimeMillis();
+            if (sleep > 0) Thread.sleep(sleep);
+        }
+
+        device.stopPreview();
+        ring.detach();
+        device.release();
+        consumerPool.shutdown();
+        cameraThread.shutdown();
+        postProcessor.shutdown();
+        postProcessor.awaitTermination(60000);
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+
+        System.out.println("frames emitted       " + device.getFrameCount());
+        System.out.println("frames delivered     " + ring.getDeliveredCount());
+        System.out.println("frames dropped       " + ring.getDroppedCount());
+        System.out.println("frames without buffer " + device.getNoBufferCount());
+        System.out.println("zsl hits             " + zslHits + "/" + burstIndex);
+        System.out.println("bursts               " + burstIndex + ", pictures " + device.getPictureCount());
+        System.out.println("worst burst          " + worst);
+        System.out.println("writes dropped       " + postProcessor.getDroppedCount() +
+                ", rejected " + postProcessor.getRejectedCount());
+        System.out.print(telemetry.snapshot());
+    }
+
+    /**
+     * Runs one burst on the camera thread and waits till it is done
+     */
+    private static BurstStats _burst(final CameraDevice device, int count, long intervalMs,
+                                     BurstSink sink, BasePostProcessor postProcessor,
+                                     final ScheduledExecutorService cameraThread)
+            throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Map<Runnable, ScheduledFuture<?>> scheduled = new HashMap<Runnable, ScheduledFuture<?>>();
+        final BurstShooter shooter = new BurstShooter(count, intervalMs, sink, postProcessor,
+                new BurstShooter.Host() {
+                    @Override
+                    public CameraDevice getDevice() {
+                        return device;
+                    }
+
+                    @Override
+                    public void postDelayed(Runnable r, long delayMs) {
+                        synchronized (scheduled) {
+                            scheduled.put(r, cameraThread.schedule(r, delayMs, TimeUnit.MILLISECONDS));
+                        }
+                    }
+
+                    @Override
+                    public void removeCallbacks(Runnable r) {
+                        synchronized (scheduled) {
+                            ScheduledFuture<?> future = scheduled.remove(r);
+                            if (future != null) future.cancel(false);
+                        }
+                    }
+
+                    @Override
+                    public boolean callAutoFocus() {
+                        return true;
+                    }
+
+                    @Override
+                    public void onAutoFocusFailed() {
+                    }
+
+                    @Override
+                    public void onBurstDone(BurstShooter shooter) {
+                        done.countDown();
+                    }
+                });
+        cameraThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                shooter.take();
+            }
+        });
+        done.await();
+        return shooter.getStats();
+    }
+
+    private static Map<String, Long> _parse(String[] args) {
+        Map<String, Long> options = new HashMap<String, Long>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("key=value expected: " + arg);
+            options.put(arg.substring(0, eq), Long.parseLong(arg.substring(eq + 1)));
+        }
+        return options;
+    }
+
+    private static long _get(Map<String, Long> options, String key, long def) {
+        Long value = options.get(key);
+        return value == null ? def : value;
+    }
+}
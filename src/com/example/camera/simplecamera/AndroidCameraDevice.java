@@ -0,0 +1,74 @@
+package com.example.camera.simplecamera;
+
+import android.hardware.Camera;
+
+/**
+ * CameraDevice on top of android.hardware.Camera,
+ * callbacks come on the thread which has opened the camera
+ */
+class AndroidCameraDevice implements CameraDevice {
+
+    private final Camera mCamera;
+
+    AndroidCameraDevice(Camera camera) {
+        mCamera = camera;
+    }
+
+    Camera getCamera() {
+        return mCamera;
+    }
+
+    @Override
+    public void addBuffer(byte[] buffer) {
+        mCamera.addCallbackBuffer(buffer);
+    }
+
+    @Override
+    public void setFrameCallback(final FrameCallback callback) {
+        if (callback == null) {
+            mCamera.setPreviewCallbackWithBuffer(null);
+            return;
+        }
+        mCamera.setPreviewCallbackWithBuffer(new Camera.PreviewCallback() {
+            @Override
+            public void onPreviewFrame(byte[] data, Camera camera) {
+                callback.onFrame(data);
+            }
+        });
+    }
+
+    @Override
+    public void startPreview() {
+        mCamera.startPreview();
+    }
+
+    @Override
+    public void stopPreview() {
+        mCamera.stopPreview();
+    }
+
+    @Override
+    public void autoFocus(final FocusCallback callback) {
+        mCamera.autoFocus(new Camera.AutoFocusCallback() {
+            @Override
+            public void onAutoFocus(boolean success, Camera camera) {
+                callback.onFocus(success);
+            }
+        });
+    }
+
+    @Override
+    public void takePicture(final PictureCallback callback) {
+        mCamera.takePicture(null, null, null, new Camera.PictureCallback() {
+            @Override
+            public void onPictureTaken(byte[] data, Camera camera) {
+                callback.onPicture(data);
+            }
+        });
+    }
+
+    @Override
+    public void release() {
+        mCamera.release();
+    }
+}
@@ -0,0 +1,246 @@
+package com.example.camera.simplecamera;
+
+import com.example.camera.tool.Telemetry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The part of PostProcessor which does not depend on Android: the bounded queue
+ * with its {@link Policy}, stage statistics and burst writes.
+ * Pure Java, so that PipelineSoak runs the same code on a desktop JVM.
+ * Public only because PostProcessor inherits its API, use PostProcessor.
+ */
+public class BasePostProcessor {
+
+    public enum Policy {
+        /** the submitting thread waits for a free slot */
+        BLOCK,
+        /** the oldest queued job is dropped, its callback gets null */
+        DROP_OLDEST,
+        /** the new job is dropped, its callback gets null */
+        REJECT
+    }
+
+    public enum Stage {
+        ENCODE, WRITE, DECODE, ROTATE
+    }
+
+    // idle workers end, a forgotten processor does not keep its threads
+    static final long WORKER_IDLE_TIMEOUT_MS = 10000;
+
+    /**
+     * Runs on a worker, cancel() is called instead if the job is dropped
+     */
+    abstract static class Task implements Runnable {
+        abstract void cancel();
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final BlockingQueue<Runnable> mQueue;
+    private final Policy mPolicy;
+
+    private final long[] mStageCount = new long[Stage.values().length];
+    private final long[] mStageTotalMs = new long[Stage.values().length];
+    private final long[] mStageLastMs = new long[Stage.values().length];
+    private final long[] mStageMaxMs = new long[Stage.values().length];
+    private static final Telemetry.Metric[] STAGE_METRICS = {
+            Telemetry.Metric.ENCODE_MS, Telemetry.Metric.WRITE_MS,
+            Telemetry.Metric.DECODE_MS, Telemetry.Metric.ROTATE_MS
+    };
+    private final AtomicInteger mDroppedCount = new AtomicInteger();
+    private final AtomicInteger mRejectedCount = new AtomicInteger();
+
+    /**
+     * Workers are daemon threads of normal priority, they end when idle
+     */
+    BasePostProcessor(int threads, int queueCapacity, Policy policy) {
+        this(threads, queueCapacity, policy, new ThreadFactory() {
+            private final AtomicInteger mCounter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SimpleCamera-post-" + mCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        _setIdleTimeout(WORKER_IDLE_TIMEOUT_MS);
+    }
+
+    BasePostProcessor(int threads, int queueCapacity, Policy policy, ThreadFactory factory) {
+        if (threads <= 0 || queueCapacity <= 0)
+            throw new IllegalArgumentException("threads and queueCapacity must be positive");
+        if (policy == null)
+            throw new IllegalArgumentException("policy must not be null");
+        mPolicy = policy;
+        mQueue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                mQueue, factory, new OverflowHandler());
+    }
+
+    /**
+     * ThreadPoolExecutor.allowCoreThreadTimeOut() needs Android API 9
+     */
+    void _setIdleTimeout(long timeoutMs) {
+        mExecutor.setKeepAliveTime(timeoutMs, TimeUnit.MILLISECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    public int getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public int getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    public synchronized long getStageCount(Stage stage) {
+        return mStageCount[stage.ordinal()];
+    }
+
+    public synchronized long getStageLastTimeMs(Stage stage) {
+        return mStageLastMs[stage.ordinal()];
+    }
+
+    public synchronized long getStageMaxTimeMs(Stage stage) {
+        return mStageMaxMs[stage.ordinal()];
+    }
+
+    public synchronized long getStageAverageTimeMs(Stage stage) {
+        int i = stage.ordinal();
+        if (mStageCount[i] == 0) return 0;
+        return mStageTotalMs[i] / mStageCount[i];
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Waits for the queued jobs after shutdown()
+     */
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        return mExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Burst pictures are only handed to the sink, no Bitmap is decoded
+     */
+    void processBurst(final byte[] imageData, final int index, final BurstSink sink) {
+        _submit(new Task() {
+            @Override
+            public void run() {
+                long start = _nowMs();
+                sink.onPicture(index, imageData);
+                _addStageTime(Stage.WRITE, start);
+            }
+
+            @Override
+            void cancel() {
+                sink.onPicture(index, null);
+            }
+        });
+        _setIdleTimeout(WORKER_IDLE_TIMEOUT_MS);
+    }
+
+    static boolean saveJpeg(byte[] imageData, File outputFile) {
+        FileOutputStream out = null;
+        try {
+            long start = System.nanoTime();
+            out = new FileOutputStream(outputFile);
+            out.write(imageData);
+            out.close();
+            Telemetry.getDefault().recordThroughput(imageData.length, System.nanoTime() - start);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            Telemetry.getDefault().error("PostProcessor.saveJpeg", e);
+            if (out != null) try {
+                out.close();
+            } catch (Exception ex) {
+            }
+            outputFile.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Monotonic clock of the stage times
+     */
+    static long _nowMs() {
+        return System.nanoTime() / 1000000;
+    }
+
+    void _submit(Task task) {
+        if (mExecutor.isShutdown()) {
+            task.cancel();
+            return;
+        }
+        mExecutor.execute(task);
+    }
+
+    synchronized void _addStageTime(Stage stage, long startMs) {
+        long time = _nowMs() - startMs;
+        int i = stage.ordinal();
+        mStageCount[i]++;
+        mStageTotalMs[i] += time;
+        mStageLastMs[i] = time;
+        if (time > mStageMaxMs[i]) mStageMaxMs[i] = time;
+        Telemetry.getDefault().record(STAGE_METRICS[i], time);
+    }
+
+    private class OverflowHandler implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            Task task = (Task) r;
+            if (executor.isShutdown()) {
+                task.cancel();
+                return;
+            }
+            switch (mPolicy) {
+                case BLOCK:
+                    try {
+                        mQueue.put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        mRejectedCount.incrementAndGet();
+                        task.cancel();
+                    }
+                    break;
+                case DROP_OLDEST:
+                    Runnable oldest = mQueue.poll();
+                    if (oldest != null) {
+                        mDroppedCount.incrementAndGet();
+                        ((Task) oldest).cancel();
+                    }
+                    executor.execute(task);
+                    break;
+                case REJECT:
+                    mRejectedCount.incrementAndGet();
+                    task.cancel();
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.camera.simplecamera;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Writes burst pictures as dir/prefix_000.jpg, dir/prefix_001.jpg ...
+ */
+public class BurstFileSink implements BurstSink {
+    private final File mDir;
+    private final String mPrefix;
+    private final BurstSink mNext;
+
+    public BurstFileSink(File dir, String prefix) {
+        this(dir, prefix, null);
+    }
+
+    /**
+     * @param next gets the same calls after the picture is written, may be null
+     */
+    public BurstFileSink(File dir, String prefix, BurstSink next) {
+        mDir = dir;
+        mPrefix = prefix;
+        mNext = next;
+    }
+
+    public File getFile(int index) {
+        return new File(mDir, String.format(Locale.US, "%s_%03d.jpg", mPrefix, index));
+    }
+
+    @Override
+    public void onPicture(int index, byte[] jpeg) {
+        if (jpeg != null) BasePostProcessor.saveJpeg(jpeg, getFile(index));
+        if (mNext != null) mNext.onPicture(index, jpeg);
+    }
+
+    @Override
+    public void onBurstDone(BurstStats stats) {
+        if (mNext != null) mNext.onBurstDone(stats);
+    }
+}
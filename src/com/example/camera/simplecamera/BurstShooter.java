@@ -0,0 +1,201 @@
+package com.example.camera.simplecamera;
+
+import com.example.camera.tool.Telemetry;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Takes pictures one by one: the preview is restarted and the next shot
+ * is scheduled right in the JPEG callback, JPEG goes to the sink as is.
+ * Pure Java, SimpleCamera.takeBurst() and PipelineSoak run the same code.
+ */
+class BurstShooter implements CameraDevice.PictureCallback {
+
+    interface Host {
+        /**
+         * null once the camera is released, the burst is then cancelled
+         */
+        CameraDevice getDevice();
+
+        /**
+         * Both run on the camera thread
+         */
+        void postDelayed(Runnable r, long delayMs);
+
+        void removeCallbacks(Runnable r);
+
+        boolean callAutoFocus();
+
+        /**
+         * autoFocus() has thrown, do not call it for the next pictures
+         */
+        void onAutoFocusFailed();
+
+        /**
+         * Called once, after the last picture or cancel() when the sink has got
+         * every picture, the sink is not notified yet. On the camera thread
+         * or on the post processor worker which has handed over the last picture
+         */
+        void onBurstDone(BurstShooter shooter);
+    }
+
+    private final int mCount;
+    private final long mIntervalMs;
+    private final BurstSink mSink;
+    private final BasePostProcessor mPostProcessor;
+    private final Host mHost;
+    private final BurstStats mStats;
+    private int mIndex = 0;
+    private long mShotStartMs = 0;
+    private volatile boolean mDone = false;
+    /** pictures handed to the post processor which have not reached the sink */
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+    private final AtomicBoolean mNotified = new AtomicBoolean();
+
+    private final Runnable mShootRunnable = new Runnable() {
+        @Override
+        public void run() {
+            _shoot();
+        }
+    };
+
+    // not synchronized, a BLOCK post processor may hold the camera thread in onPicture()
+    private final BurstSink mCountingSink = new BurstSink() {
+        @Override
+        public void onPicture(int index, byte[] jpeg) {
+            try {
+                mSink.onPicture(index, jpeg);
+            } finally {
+                if (mPendingCount.decrementAndGet() == 0 && mDone) _notifyDone();
+            }
+        }
+
+        @Override
+        public void onBurstDone(BurstStats stats) {
+        }
+    };
+
+    BurstShooter(int count, long intervalMs, BurstSink sink,
+                 BasePostProcessor postProcessor, Host host) {
+        mCount = count;
+        mIntervalMs = intervalMs;
+        mSink = sink;
+        mPostProcessor = postProcessor;
+        mHost = host;
+        mStats = new BurstStats(count);
+    }
+
+    BurstSink getSink() {
+        return mSink;
+    }
+
+    BurstStats getStats() {
+        return mStats;
+    }
+
+    synchronized void take() {
+        CameraDevice device = mHost.getDevice();
+        if (device == null) {
+            cancel();
+            return;
+        }
+        mStats.mStartMs = _nowMs();
+        // focus only once for the whole burst
+        CameraDevice.FocusCallback focusCallback = new CameraDevice.FocusCallback() {
+            @Override
+            public void onFocus(boolean success) {
+                synchronized (BurstShooter.this) {
+                    long now = _nowMs();
+                    if (mHost.callAutoFocus()) Telemetry.getDefault().record(
+                            Telemetry.Metric.AUTOFOCUS_MS, now - mStats.mStartMs);
+                    mStats.mStartMs = now;
+                    _shoot();
+                }
+            }
+        };
+        if (mHost.callAutoFocus()) {
+            try {
+                device.autoFocus(focusCallback);
+            } catch (Exception e) {
+                mHost.onAutoFocusFailed();
+                focusCallback.onFocus(true);
+            }
+        } else {
+            focusCallback.onFocus(true);
+        }
+    }
+
+    synchronized void cancel() {
+        if (mDone) return;
+        mStats.mCancelled = true;
+        _finish(_nowMs());
+    }
+
+    @Override
+    public synchronized void onPicture(byte[] imageData) {
+        if (mDone) return;
+        long now = _nowMs();
+        mStats.addShot(now - mShotStartMs);
+        Telemetry.getDefault().record(Telemetry.Metric.SHUTTER_TO_JPEG_MS, now - mShotStartMs);
+        // the preview must run before the next takePicture()
+        CameraDevice device = mHost.getDevice();
+        if (device != null) try {
+            device.startPreview();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Telemetry.getDefault().error("SimpleCamera.takeBurst", e);
+        }
+        int index = mIndex++;
+        if (imageData != null) {
+            mPendingCount.incrementAndGet();
+            mPostProcessor.processBurst(imageData, index, mCountingSink);
+        } else {
+            mSink.onPicture(index, null);
+        }
+
+        if (mIndex >= mCount) {
+            _finish(now);
+            return;
+        }
+        long delay = mStats.mStartMs + mIndex * mIntervalMs - now;
+        if (delay > 0) mHost.postDelayed(mShootRunnable, delay);
+        else _shoot();
+    }
+
+    private synchronized void _shoot() {
+        if (mDone) return;
+        CameraDevice device = mHost.getDevice();
+        if (device == null) {
+            cancel();
+            return;
+        }
+        mShotStartMs = _nowMs();
+        try {
+            device.takePicture(this);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Telemetry.getDefault().error("SimpleCamera.takeBurst", e);
+            cancel();
+        }
+    }
+
+    private void _finish(long now) {
+        mHost.removeCallbacks(mShootRunnable);
+        mStats.mDurationMs = now - mStats.mStartMs;
+        // the stats are complete before a worker can see mDone
+        mDone = true;
+        if (mPendingCount.get() == 0) _notifyDone();
+    }
+
+    /**
+     * Both the last picture and _finish() may get here, only the first one notifies
+     */
+    private void _notifyDone() {
+        if (mNotified.compareAndSet(false, true)) mHost.onBurstDone(this);
+    }
+
+    private static long _nowMs() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.camera.simplecamera;
+
+/**
+ * Receives the JPEGs of SimpleCamera.takeBurst(), see BurstFileSink
+ */
+public interface BurstSink {
+    /**
+     * Called on a post processor worker
+     *
+     * @param jpeg null if the post processor has dropped the picture
+     */
+    void onPicture(int index, byte[] jpeg);
+
+    /**
+     * Called on the thread which has created SimpleCamera,
+     * after onPicture() has returned for every picture
+     */
+    void onBurstDone(BurstStats stats);
+}
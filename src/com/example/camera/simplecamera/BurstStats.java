@@ -0,0 +1,70 @@
+package com.example.camera.simplecamera;
+
+/**
+ * Result of SimpleCamera.takeBurst()
+ */
+public class BurstStats {
+    final int mRequestedCount;
+    int mShotCount = 0;
+    long mStartMs = 0;
+    long mDurationMs = 0;
+    long mTotalShotMs = 0;
+    long mMaxShotMs = 0;
+    boolean mCancelled = false;
+
+    BurstStats(int requestedCount) {
+        mRequestedCount = requestedCount;
+    }
+
+    void addShot(long shotMs) {
+        mShotCount++;
+        mTotalShotMs += shotMs;
+        if (shotMs > mMaxShotMs) mMaxShotMs = shotMs;
+    }
+
+    public int getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    public int getShotCount() {
+        return mShotCount;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * from the first takePicture() till the last JPEG
+     */
+    public long getDurationMs() {
+        return mDurationMs;
+    }
+
+    public float getShotsPerSecond() {
+        if (mDurationMs == 0) return 0;
+        return mShotCount * 1000f / mDurationMs;
+    }
+
+    /**
+     * average time from takePicture() to the JPEG callback
+     */
+    public long getAverageShotTimeMs() {
+        if (mShotCount == 0) return 0;
+        return mTotalShotMs / mShotCount;
+    }
+
+    public long getMaxShotTimeMs() {
+        return mMaxShotMs;
+    }
+
+    @Override
+    public String toString() {
+        return "BurstStats{shots=" + mShotCount + "/" + mRequestedCount +
+                ", duration=" + mDurationMs + "ms" +
+                ", fps=" + getShotsPerSecond() +
+                ", avgShot=" + getAverageShotTimeMs() + "ms" +
+                ", maxShot=" + mMaxShotMs + "ms" +
+                (mCancelled ? ", cancelled" : "") + "}";
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.camera.simplecamera;
+
+import android.os.Build;
+
+import com.example.camera.tool.Telemetry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Negotiated camera configurations persisted in a small binary file.
+ * The file is bound to the device fingerprint and OS build,
+ * it is ignored after a system update.
+ */
+public class CameraConfigCache {
+
+    private static final int MAGIC = 0x53434343; // SCCC
+    private static final int VERSION = 1;
+
+    static class Entry {
+        int mPreviewWidth;
+        int mPreviewHeight;
+        int mVideoWidth;
+        int mVideoHeight;
+        int mPictureWidth;
+        int mPictureHeight;
+        int mProfileQuality = -1;
+        String mFocusMode;
+        boolean mCallVideoAutoFocus;
+        boolean mCallPictureAutoFocus;
+    }
+
+    private final File mFile;
+    private Map<String, Entry> mEntries = null;
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+
+    /**
+     * @param file e.g. new File(context.getCacheDir(), "camera.cfg")
+     */
+    public CameraConfigCache(File file) {
+        if (file == null) throw new IllegalArgumentException("file must not be null");
+        mFile = file;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Forget everything, the next start negotiates from scratch
+     */
+    public synchronized void invalidate() {
+        mEntries = new HashMap<String, Entry>();
+        mFile.delete();
+    }
+
+    synchronized Entry get(String key) {
+        Entry entry = _getEntries().get(key);
+        if (entry == null) mMissCount++;
+        else mHitCount++;
+        return entry;
+    }
+
+    /**
+     * Like get() but not counted, the file is read if it has not been yet
+     */
+    synchronized Entry peek(String key) {
+        return _getEntries().get(key);
+    }
+
+    synchronized void put(String key, Entry entry) {
+        _getEntries().put(key, entry);
+        _save();
+    }
+
+    synchronized void remove(String key) {
+        if (_getEntries().remove(key) != null) _save();
+    }
+
+    private static String _getBuildId() {
+        return Build.FINGERPRINT + "/" + Build.VERSION.SDK_INT;
+    }
+
+    private Map<String, Entry> _getEntries() {
+        if (mEntries == null) {
+            mEntries = new HashMap<String, Entry>();
+            if (mFile.exists()) _load();
+        }
+        return mEntries;
+    }
+
+    private void _load() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return;
+            if (!_getBuildId().equals(in.readUTF())) return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                Entry entry = new Entry();
+                entry.mPreviewWidth = in.readInt();
+                entry.mPreviewHeight = in.readInt();
+                entry.mVideoWidth = in.readInt();
+                entry.mVideoHeight = in.readInt();
+                entry.mPictureWidth = in.readInt();
+                entry.mPictureHeight = in.readInt();
+                entry.mProfileQuality = in.readInt();
+                entry.mFocusMode = in.readBoolean() ? in.readUTF() : null;
+                entry.mCallVideoAutoFocus = in.readBoolean();
+                entry.mCallPictureAutoFocus = in.readBoolean();
+                mEntries.put(key, entry);
+            }
+        } catch (IOException e) {
+            // broken file is the same as no file
+            mEntries.clear();
+        } finally {
+            if (in != null) try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void _save() {
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(_getBuildId());
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeInt(entry.mPreviewWidth);
+                out.writeInt(entry.mPreviewHeight);
+                out.writeInt(entry.mVideoWidth);
+                out.writeInt(entry.mVideoHeight);
+                out.writeInt(entry.mPictureWidth);
+                out.writeInt(entry.mPictureHeight);
+                out.writeInt(entry.mProfileQuality);
+                out.writeBoolean(entry.mFocusMode != null);
+                if (entry.mFocusMode != null) out.writeUTF(entry.mFocusMode);
+                out.writeBoolean(entry.mCallVideoAutoFocus);
+                out.writeBoolean(entry.mCallPictureAutoFocus);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) temp.delete();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Telemetry.getDefault().error("CameraConfigCache.save", e);
+            temp.delete();
+        } finally {
+            if (out != null) try {
+                out.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.camera.simplecamera;
+
+/**
+ * The part of a camera the capture pipeline talks to: buffered NV21 preview,
+ * autofocus and JPEG capture. AndroidCameraDevice wraps android.hardware.Camera,
+ * SimulatedCameraDevice runs on any JVM for load tests.
+ */
+public interface CameraDevice {
+
+    interface FrameCallback {
+        /**
+         * @param data one of the added buffers, it must be added again to be reused
+         */
+        void onFrame(byte[] data);
+    }
+
+    interface FocusCallback {
+        void onFocus(boolean success);
+    }
+
+    interface PictureCallback {
+        /**
+         * The preview is stopped after a picture, start it again for the next one
+         */
+        void onPicture(byte[] jpeg);
+    }
+
+    void addBuffer(byte[] buffer);
+
+    /**
+     * @param callback null - stop delivering frames
+     */
+    void setFrameCallback(FrameCallback callback);
+
+    void startPreview();
+
+    void stopPreview();
+
+    void autoFocus(FocusCallback callback);
+
+    void takePicture(PictureCallback callback);
+
+    void release();
+}
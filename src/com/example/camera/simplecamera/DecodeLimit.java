@@ -0,0 +1,62 @@
+package com.example.camera.simplecamera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.example.camera.tool.Utils;
+
+/**
+ * Size of the Bitmap the callback needs, the JPEG is decoded subsampled
+ */
+class DecodeLimit {
+    static final DecodeLimit NONE = new DecodeLimit(0, 0, 0);
+
+    final int mMaxWidth;
+    final int mMaxHeight;
+    final long mMaxPixels;
+
+    private DecodeLimit(int maxWidth, int maxHeight, long maxPixels) {
+        mMaxWidth = maxWidth;
+        mMaxHeight = maxHeight;
+        mMaxPixels = maxPixels;
+    }
+
+    static DecodeLimit size(int maxWidth, int maxHeight) {
+        if (maxWidth <= 0 || maxHeight <= 0)
+            throw new IllegalArgumentException("maxWidth and maxHeight must be positive");
+        return new DecodeLimit(maxWidth, maxHeight, 0);
+    }
+
+    static DecodeLimit pixels(long maxPixels) {
+        if (maxPixels <= 0)
+            throw new IllegalArgumentException("maxPixels must be positive");
+        return new DecodeLimit(0, 0, maxPixels);
+    }
+
+    Bitmap decode(byte[] jpeg) {
+        if (mMaxWidth > 0) return Utils.decodeJpeg(jpeg, mMaxWidth, mMaxHeight);
+        if (mMaxPixels > 0) return Utils.decodeJpeg(jpeg, mMaxPixels);
+        return BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+    }
+
+    /**
+     * inSampleSize decode(jpeg) would use for a width x height JPEG
+     */
+    int getSampleSize(int width, int height) {
+        if (mMaxWidth > 0) return Utils.calculateInSampleSize(width, height, mMaxWidth, mMaxHeight);
+        if (mMaxPixels > 0) return Utils.calculateInSampleSize(width, height, mMaxPixels);
+        return 1;
+    }
+
+    /**
+     * @param sampleSize not less than getSampleSize(), e.g. from MemoryGovernor
+     */
+    Bitmap decode(byte[] jpeg, int width, int height, int sampleSize) {
+        if (sampleSize <= getSampleSize(width, height)) return decode(jpeg);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap bmp = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (mMaxWidth > 0) return Utils.scaleToFit(bmp, mMaxWidth, mMaxHeight);
+        return bmp;
+    }
+}
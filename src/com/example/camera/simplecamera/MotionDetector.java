@@ -0,0 +1,210 @@
+package com.example.camera.simplecamera;
+
+/**
+ * Motion on the luma plane of NV21 preview frames.
+ * The frame is reduced to a grid of block means (a sparse sample of every block),
+ * each block is compared with a running background of its own. The mean difference
+ * of all blocks is subtracted first, so auto exposure does not count as motion.
+ * <p/>
+ * Motion starts when enough blocks have changed for a few frames in a row
+ * and stops when there has been little change for a while.
+ * Nothing is allocated per frame, only when the frame size changes.
+ * Pure Java, frames are processed on one thread.
+ */
+public class MotionDetector {
+
+    // samples read per block side
+    private static final int SAMPLES = 8;
+    // block means and background are kept in 1/256 of a luma level
+    private static final int FRACTION_BITS = 8;
+
+    private final int mColumns;
+    private final int mRows;
+    private final int[] mMeans;
+    private final int[] mBackground;
+    private int[] mBlockLeft;
+    private int[] mBlockTop;
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private int mStepX = 1;
+    private int mStepY = 1;
+    private int mSamplesX = 1;
+    private int mSamplesY = 1;
+
+    private volatile int mThreshold = 12;
+    private volatile float mStartLevel = 0.02f;
+    private volatile float mStopLevel = 0.005f;
+    private volatile int mStartFrames = 3;
+    private volatile long mStopDelayNs = 3000000000L;
+    private volatile int mLearningShift = 4;
+
+    private long mFrameCount = 0;
+    private volatile float mLevel = 0;
+    private volatile boolean mMotion = false;
+    private int mAboveCount = 0;
+    private long mLastMotionNs = 0;
+
+    /**
+     * 32 x 24 blocks
+     */
+    public MotionDetector() {
+        this(32, 24);
+    }
+
+    public MotionDetector(int columns, int rows) {
+        if (columns < 1 || rows < 1) throw new IllegalArgumentException("grid must not be empty");
+        mColumns = columns;
+        mRows = rows;
+        mMeans = new int[columns * rows];
+        mBackground = new int[columns * rows];
+    }
+
+    /**
+     * @param threshold difference of a block mean from its background in luma levels
+     *                  which counts the block as changed, 12 by default
+     */
+    public void setThreshold(int threshold) {
+        mThreshold = threshold;
+    }
+
+    /**
+     * @param startLevel share of changed blocks which starts motion, 0.02 by default
+     * @param stopLevel  share of changed blocks below which motion may stop, 0.005 by default
+     */
+    public void setLevels(float startLevel, float stopLevel) {
+        if (stopLevel > startLevel) throw new IllegalArgumentException("stopLevel must not exceed startLevel");
+        mStartLevel = startLevel;
+        mStopLevel = stopLevel;
+    }
+
+    /**
+     * @param startFrames frames in a row above the start level, 3 by default
+     * @param stopDelayMs time below the stop level before motion stops, 3000 by default
+     */
+    public void setHysteresis(int startFrames, long stopDelayMs) {
+        mStartFrames = Math.max(1, startFrames);
+        mStopDelayNs = stopDelayMs * 1000000L;
+    }
+
+    /**
+     * @param shift the background follows the scene by 1/2^shift per frame,
+     *              4 by default: a change is learned in about a second at 30 fps
+     */
+    public void setLearningRate(int shift) {
+        if (shift < 0 || shift > 16) throw new IllegalArgumentException("shift must be 0..16");
+        mLearningShift = shift;
+    }
+
+    /**
+     * Forget the background, e.g. after the camera has been reopened
+     */
+    public void reset() {
+        mFrameCount = 0;
+        mLevel = 0;
+        mMotion = false;
+        mAboveCount = 0;
+    }
+
+    /**
+     * @param nv21        only the first width * height bytes are read
+     * @param timestampNs System.nanoTime() of the frame
+     * @return true while there is motion
+     */
+    public boolean process(byte[] nv21, int width, int height, long timestampNs) {
+        if (width != mWidth || height != mHeight) _layout(width, height);
+        _measure(nv21);
+
+        int blocks = mMeans.length;
+        int shift = mLearningShift;
+        if (mFrameCount++ == 0) {
+            System.arraycopy(mMeans, 0, mBackground, 0, blocks);
+            return mMotion;
+        }
+        long totalDelta = 0;
+        for (int i = 0; i < blocks; i++) totalDelta += mMeans[i] - mBackground[i];
+        int globalDelta = (int) (totalDelta / blocks);
+        int threshold = mThreshold << FRACTION_BITS;
+        int changed = 0;
+        for (int i = 0; i < blocks; i++) {
+            int delta = mMeans[i] - mBackground[i];
+            int local = delta - globalDelta;
+            if (local > threshold || local < -threshold) changed++;
+            mBackground[i] += delta >> shift;
+        }
+        float level = (float) changed / blocks;
+        mLevel = level;
+        _trigger(level, timestampNs);
+        return mMotion;
+    }
+
+    /**
+     * Share of changed blocks in the last frame, 0..1
+     */
+    public float getLevel() {
+        return mLevel;
+    }
+
+    public boolean isMotion() {
+        return mMotion;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    private void _trigger(float level, long timestampNs) {
+        if (!mMotion) {
+            mAboveCount = level >= mStartLevel ? mAboveCount + 1 : 0;
+            if (mAboveCount >= mStartFrames) {
+                mMotion = true;
+                mAboveCount = 0;
+                mLastMotionNs = timestampNs;
+            }
+        } else if (level >= mStopLevel) {
+            mLastMotionNs = timestampNs;
+        } else if (timestampNs - mLastMotionNs >= mStopDelayNs) {
+            mMotion = false;
+        }
+    }
+
+    private void _measure(byte[] nv21) {
+        int width = mWidth;
+        int samplesX = mSamplesX;
+        int samplesY = mSamplesY;
+        int stepX = mStepX;
+        int rowStep = mStepY * width;
+        int count = samplesX * samplesY;
+        int i = 0;
+        for (int r = 0; r < mRows; r++) {
+            int top = mBlockTop[r] * width;
+            for (int c = 0; c < mColumns; c++, i++) {
+                int sum = 0;
+                for (int y = 0, row = top + mBlockLeft[c]; y < samplesY; y++, row += rowStep) {
+                    for (int x = 0, p = row; x < samplesX; x++, p += stepX) {
+                        sum += nv21[p] & 0xFF;
+                    }
+                }
+                mMeans[i] = (sum << FRACTION_BITS) / count;
+            }
+        }
+    }
+
+    private void _layout(int width, int height) {
+        if (width < mColumns || height < mRows)
+            throw new IllegalArgumentException("frame is smaller than the grid");
+        mWidth = width;
+        mHeight = height;
+        int blockWidth = width / mColumns;
+        int blockHeight = height / mRows;
+        mSamplesX = Math.min(SAMPLES, blockWidth);
+        mSamplesY = Math.min(SAMPLES, blockHeight);
+        mStepX = blockWidth / mSamplesX;
+        mStepY = blockHeight / mSamplesY;
+        mBlockLeft = new int[mColumns];
+        mBlockTop = new int[mRows];
+        // samples are centred in the block
+        for (int c = 0; c < mColumns; c++) mBlockLeft[c] = c * blockWidth + mStepX / 2;
+        for (int r = 0; r < mRows; r++) mBlockTop[r] = r * blockHeight + mStepY / 2;
+        reset();
+    }
+}
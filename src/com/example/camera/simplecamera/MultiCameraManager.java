@@ -0,0 +1,483 @@
+package com.example.camera.simplecamera;
+
+import android.hardware.Camera;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.SurfaceView;
+
+import com.example.camera.tool.Histogram;
+import com.example.camera.tool.MemoryGovernor;
+import com.example.camera.tool.Telemetry;
+
+/**
+ * Several SimpleCamera sessions, one per camera, which share one post processor
+ * (the bounded pool and queue for JPEG encodes, writes and decodes), one config cache
+ * and one memory governor instead of having their own.
+ * <p/>
+ * Camera API 1 does not tell how many cameras may be open at once, so the limit
+ * is 1 by default, see setMaxOpenCameras(). A camera failing to open next to
+ * the open ones lowers the limit to what has worked.
+ * <p/>
+ * switchCamera() moves a SurfaceView to another camera. Within the limit the camera
+ * giving the view up stays open (RETAINED) for the warm period and the next camera
+ * is pre-opened, so that a switch only restarts a preview. Otherwise the old camera
+ * is closed first and the next one opens with its configuration prefetched.
+ * <p/>
+ * Must be used on a thread with a Looper, listeners are called there.
+ * StateListener and CameraListener of the sessions belong to the manager.
+ */
+public class MultiCameraManager {
+
+    public interface Listener {
+        /**
+         * @param switchMs from switchCamera() till the preview of toIndex has started
+         * @param warm     toIndex had been open already
+         */
+        void onSwitched(int fromIndex, int toIndex, long switchMs, boolean warm);
+
+        /**
+         * toIndex could not be opened, the view is back with fromIndex and its preview restarts
+         */
+        void onSwitchFailed(int fromIndex, int toIndex);
+
+        void onCameraError(int cameraIndex, Exception e);
+    }
+
+    public class Session implements SimpleCamera.StateListener, SimpleCamera.CameraListener {
+        final int mIndex;
+        final SimpleCamera mCamera;
+        SurfaceView mView = null;
+        /** the manager has asked for the camera, it counts against the limit */
+        boolean mWanted = false;
+        SimpleCamera.State mState = SimpleCamera.State.CLOSED;
+        long mPreviewSinceMs = 0;
+        long mFramesBefore = 0;
+
+        Session(int index) {
+            mIndex = index;
+            mCamera = new SimpleCamera();
+            mCamera.setCameraIndex(index);
+            mCamera.setPostProcessor(mPostProcessor);
+            mCamera.setConfigCache(mConfigCache);
+            if (mMemoryGovernor != null) mCamera.setMemoryGovernor(mMemoryGovernor);
+            mCamera.setStateListener(this);
+            mCamera.setCameraListener(this);
+        }
+
+        public int getCameraIndex() {
+            return mIndex;
+        }
+
+        public SimpleCamera getCamera() {
+            return mCamera;
+        }
+
+        public SurfaceView getSurfaceView() {
+            return mView;
+        }
+
+        public SimpleCamera.State getState() {
+            return mState;
+        }
+
+        public boolean isOpen() {
+            return mWanted || mState != SimpleCamera.State.CLOSED;
+        }
+
+        /**
+         * Preview frames delivered since the preview has started, counted only
+         * with a preview frame listener, a motion detector or zero shutter lag
+         */
+        public long getDeliveredFrames() {
+            if (mPreviewSinceMs == 0) return 0;
+            return mCamera.getDeliveredPreviewFrames() - mFramesBefore;
+        }
+
+        public float getPreviewFps() {
+            if (mPreviewSinceMs == 0) return 0;
+            long ms = SystemClock.elapsedRealtime() - mPreviewSinceMs;
+            return ms <= 0 ? 0 : getDeliveredFrames() * 1000f / ms;
+        }
+
+        @Override
+        public void onStateChanged(SimpleCamera.State oldState, SimpleCamera.State newState) {
+            mState = newState;
+            if (newState == SimpleCamera.State.CLOSED) {
+                mWanted = false;
+                mPreviewSinceMs = 0;
+            } else if (newState == SimpleCamera.State.PREVIEW && mPreviewSinceMs == 0) {
+                mPreviewSinceMs = SystemClock.elapsedRealtime();
+                mFramesBefore = mCamera.getDeliveredPreviewFrames();
+            }
+            _onSessionState(this, oldState, newState);
+        }
+
+        @Override
+        public void onPreviewStarted(long openMs, long configureMs) {
+        }
+
+        @Override
+        public void onFirstPreviewFrame(long coldStartMs) {
+        }
+
+        @Override
+        public void onCameraError(Exception e) {
+            Listener listener = mListener;
+            if (listener != null) listener.onCameraError(mIndex, e);
+        }
+
+        @Override
+        public String toString() {
+            return "Session{camera=" + mIndex +
+                    ", state=" + mState +
+                    ", open=" + mCamera.getLastOpenTimeMs() + "ms" +
+                    ", frames=" + getDeliveredFrames() +
+                    ", fps=" + getPreviewFps() + "}";
+        }
+    }
+
+    private static class Switch {
+        final Session mFrom;
+        final Session mTo;
+        final SurfaceView mView;
+        final long mStartMs;
+        final boolean mWarm;
+        boolean mStarted = false;
+        boolean mRetried = false;
+
+        Switch(Session from, Session to, SurfaceView view, long startMs, boolean warm) {
+            mFrom = from;
+            mTo = to;
+            mView = view;
+            mStartMs = startMs;
+            mWarm = warm;
+        }
+    }
+
+    private final Session[] mSessions;
+    private final PostProcessor mPostProcessor;
+    private final boolean mOwnPostProcessor;
+    private final CameraConfigCache mConfigCache;
+    private final MemoryGovernor mMemoryGovernor;
+    private Listener mListener = null;
+    private int mMaxOpenCameras = 1;
+    /** prepare() stays below it after an open has failed next to other cameras */
+    private int mLearnedMaxOpen = 1;
+    private long mWarmPeriodMs = 5000;
+    private boolean mPrepareNext = true;
+
+    private Switch mSwitch = null;
+    private final Histogram mSwitchTimes = new Histogram();
+    private int mWarmSwitchCount = 0;
+    private long mLastSwitchTimeMs = -1;
+
+    /**
+     * Two workers and 8 queued jobs for all the sessions
+     *
+     * @param configCache may be null
+     */
+    public MultiCameraManager(CameraConfigCache configCache) {
+        this(null, configCache, null);
+    }
+
+    /**
+     * @param postProcessor null - two workers and 8 queued jobs, shut down by release()
+     * @param configCache   may be null
+     * @param governor      may be null
+     */
+    public MultiCameraManager(PostProcessor postProcessor, CameraConfigCache configCache,
+                              MemoryGovernor governor) {
+        mOwnPostProcessor = postProcessor == null;
+        if (postProcessor == null) postProcessor = new PostProcessor(2, 8, PostProcessor.Policy.REJECT);
+        if (postProcessor.getResultHandler() == null) postProcessor.setResultHandler(new Handler());
+        mPostProcessor = postProcessor;
+        mConfigCache = configCache;
+        mMemoryGovernor = governor;
+        mSessions = new Session[getCameraCount()];
+    }
+
+    public static int getCameraCount() {
+        if (Build.VERSION.SDK_INT >= 9) return Camera.getNumberOfCameras();
+        return 1;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param max cameras open at once, retained and pre-opened ones included
+     */
+    public void setMaxOpenCameras(int max) {
+        if (max < 1) throw new IllegalArgumentException("max must be positive");
+        mMaxOpenCameras = max;
+        mLearnedMaxOpen = max;
+    }
+
+    public int getMaxOpenCameras() {
+        return mMaxOpenCameras;
+    }
+
+    /**
+     * @param warmPeriodMs how long a camera left by switchCamera() or pre-opened
+     *                     is kept open, 5000 by default
+     */
+    public void setWarmPeriod(long warmPeriodMs) {
+        if (warmPeriodMs < 0) throw new IllegalArgumentException("warmPeriodMs must not be negative");
+        mWarmPeriodMs = warmPeriodMs;
+    }
+
+    /**
+     * @param prepare prepare() the next camera when a preview has started, true by default
+     */
+    public void setPrepareNext(boolean prepare) {
+        mPrepareNext = prepare;
+    }
+
+    public PostProcessor getPostProcessor() {
+        return mPostProcessor;
+    }
+
+    public Session getSession(int cameraIndex) {
+        if (cameraIndex < 0 || cameraIndex >= mSessions.length)
+            throw new IllegalArgumentException("no camera " + cameraIndex);
+        if (mSessions[cameraIndex] == null) mSessions[cameraIndex] = new Session(cameraIndex);
+        return mSessions[cameraIndex];
+    }
+
+    public int getOpenCount() {
+        return _getOpenCount(null);
+    }
+
+    /**
+     * Starts the preview of one more camera on its own view
+     *
+     * @return false if it would exceed the limit or the view is taken
+     */
+    public boolean open(int cameraIndex, SurfaceView view) {
+        Session session = getSession(cameraIndex);
+        Session owner = _getSession(view);
+        if (owner != null && owner != session) return false;
+        if (!session.isOpen() && _getOpenCount(null) >= mMaxOpenCameras) return false;
+        session.mWanted = true;
+        session.mView = view;
+        session.mCamera.init(view);
+        session.mCamera.startPreview();
+        return true;
+    }
+
+    public void close(int cameraIndex) {
+        Session session = getSession(cameraIndex);
+        Switch pending = mSwitch;
+        if (pending != null && (pending.mFrom == session || pending.mTo == session)) mSwitch = null;
+        session.mWanted = false;
+        session.mView = null;
+        session.mCamera.release();
+    }
+
+    /**
+     * Opens the camera without a surface for the warm period if the limit allows,
+     * otherwise only prefetches its cached configuration
+     *
+     * @return true if the camera is open or being opened
+     */
+    public boolean prepare(int cameraIndex, int surfaceWidth, int surfaceHeight) {
+        Session session = getSession(cameraIndex);
+        if (session.isOpen()) return true;
+        if (_getOpenCount(null) >= mLearnedMaxOpen) {
+            session.mCamera.prefetchConfig(surfaceWidth, surfaceHeight);
+            return false;
+        }
+        session.mWanted = true;
+        session.mCamera.preopen(surfaceWidth, surfaceHeight, mWarmPeriodMs);
+        return true;
+    }
+
+    /**
+     * Moves the view of fromIndex to toIndex, see Listener.onSwitched()
+     *
+     * @return false if fromIndex has no view, toIndex has one or a switch is going on
+     */
+    public boolean switchCamera(int fromIndex, int toIndex) {
+        Session from = getSession(fromIndex);
+        Session to = getSession(toIndex);
+        if (from == to || from.mView == null || to.mView != null || mSwitch != null) return false;
+        boolean warm = to.isOpen();
+        Switch pending = new Switch(from, to, from.mView, SystemClock.elapsedRealtime(), warm);
+        mSwitch = pending;
+        // the old camera stays warm if the new one fits next to it
+        boolean keep = warm || _getOpenCount(null) < mMaxOpenCameras;
+        SurfaceView view = from.mView;
+        from.mView = null;
+        from.mCamera.detachSurface(keep ? mWarmPeriodMs : 0);
+        if (!keep) {
+            from.mWanted = false;
+            from.mCamera.release();
+            to.mCamera.prefetchConfig(view.getWidth(), view.getHeight());
+        }
+        if (mSwitch == pending && _getOpenCount(to) < mMaxOpenCameras) _startSwitch(pending);
+        return true;
+    }
+
+    public boolean isSwitching() {
+        return mSwitch != null;
+    }
+
+    public int getSwitchCount() {
+        return (int) mSwitchTimes.getCount();
+    }
+
+    /**
+     * Switches to a camera which had been open already
+     */
+    public int getWarmSwitchCount() {
+        return mWarmSwitchCount;
+    }
+
+    /**
+     * @return -1 if there has been no switch
+     */
+    public long getLastSwitchTimeMs() {
+        return mLastSwitchTimeMs;
+    }
+
+    public Histogram.Snapshot getSwitchTimes() {
+        return mSwitchTimes.snapshot();
+    }
+
+    /**
+     * Releases all the cameras, the post processor is shut down if the manager has created it
+     */
+    public void release() {
+        mSwitch = null;
+        for (Session session : mSessions) {
+            if (session == null) continue;
+            session.mWanted = false;
+            session.mView = null;
+            session.mCamera.release();
+        }
+        if (mOwnPostProcessor) mPostProcessor.shutdown();
+    }
+
+    private void _startSwitch(Switch pending) {
+        pending.mStarted = true;
+        Session to = pending.mTo;
+        to.mWanted = true;
+        to.mView = pending.mView;
+        // a warm camera takes the existing surface and restarts its preview
+        to.mCamera.init(pending.mView);
+        to.mCamera.startPreview();
+    }
+
+    private void _onSessionState(Session session, SimpleCamera.State oldState,
+                                 SimpleCamera.State newState) {
+        boolean failed = oldState == SimpleCamera.State.OPENING &&
+                newState == SimpleCamera.State.CLOSED;
+        boolean opened = oldState == SimpleCamera.State.OPENING &&
+                (newState == SimpleCamera.State.PREVIEW || newState == SimpleCamera.State.RETAINED);
+        int others = _getOpenCount(session);
+        // the device may not allow as many cameras as it has been told, or it may be
+        // busy for a while: prepare() backs off, the next open next to others restores it
+        if (failed && others > 0 && others < mLearnedMaxOpen) mLearnedMaxOpen = others;
+        if (opened && others >= mLearnedMaxOpen) mLearnedMaxOpen = Math.min(others + 1, mMaxOpenCameras);
+
+        Switch pending = mSwitch;
+        if (pending != null) {
+            if (!pending.mStarted) {
+                if (_getOpenCount(pending.mTo) < mMaxOpenCameras) _startSwitch(pending);
+            } else if (session == pending.mTo) {
+                if (newState == SimpleCamera.State.PREVIEW || newState == SimpleCamera.State.RECORDING) {
+                    _finishSwitch(pending);
+                } else if (failed) {
+                    // only this attempt assumes the others were too many
+                    int limit = others > 0 ? Math.min(others, mMaxOpenCameras) : mMaxOpenCameras;
+                    _retrySwitch(pending, limit);
+                }
+            }
+        }
+        if (newState == SimpleCamera.State.PREVIEW && session.mView != null && mSwitch == null)
+            _prepareNext(session);
+    }
+
+    /**
+     * Warm cameras without a view are closed to make room, once
+     *
+     * @param limit cameras which may be open for this attempt
+     */
+    private void _retrySwitch(Switch pending, int limit) {
+        int others = _getOpenCount(pending.mTo);
+        int warm = 0;
+        for (Session session : mSessions) {
+            if (session != null && session != pending.mTo && session.isOpen() && session.mView == null)
+                warm++;
+        }
+        if (pending.mRetried || warm == 0 || others - warm >= limit) {
+            _failSwitch(pending);
+            return;
+        }
+        pending.mRetried = true;
+        pending.mStarted = false;
+        pending.mTo.mWanted = false;
+        pending.mTo.mView = null;
+        pending.mTo.mCamera.detachSurface(0);
+        for (Session session : mSessions) {
+            if (session == null || session == pending.mTo || session.mView != null || !session.isOpen())
+                continue;
+            session.mWanted = false;
+            session.mCamera.release();
+        }
+    }
+
+    /**
+     * The view goes back to the camera it has been taken from
+     */
+    private void _failSwitch(Switch pending) {
+        mSwitch = null;
+        pending.mTo.mView = null;
+        Session from = pending.mFrom;
+        if (from.mView == null && _getSession(pending.mView) == null) {
+            from.mWanted = true;
+            from.mView = pending.mView;
+            from.mCamera.init(pending.mView);
+            from.mCamera.startPreview();
+        }
+        Listener listener = mListener;
+        if (listener != null) listener.onSwitchFailed(from.mIndex, pending.mTo.mIndex);
+    }
+
+    private void _finishSwitch(Switch pending) {
+        mSwitch = null;
+        long switchMs = SystemClock.elapsedRealtime() - pending.mStartMs;
+        mLastSwitchTimeMs = switchMs;
+        mSwitchTimes.record(switchMs);
+        if (pending.mWarm) mWarmSwitchCount++;
+        Telemetry.getDefault().record(Telemetry.Metric.CAMERA_SWITCH_MS, switchMs);
+        Listener listener = mListener;
+        if (listener != null)
+            listener.onSwitched(pending.mFrom.mIndex, pending.mTo.mIndex, switchMs, pending.mWarm);
+    }
+
+    private void _prepareNext(Session session) {
+        if (!mPrepareNext || mSessions.length < 2) return;
+        Session next = getSession((session.mIndex + 1) % mSessions.length);
+        if (next.isOpen()) return;
+        SurfaceView view = session.mView;
+        prepare(next.mIndex, view.getWidth(), view.getHeight());
+    }
+
+    private int _getOpenCount(Session except) {
+        int count = 0;
+        for (Session session : mSessions) {
+            if (session != null && session != except && session.isOpen()) count++;
+        }
+        return count;
+    }
+
+    private Session _getSession(SurfaceView view) {
+        for (Session session : mSessions) {
+            if (session != null && session.mView == view) return session;
+        }
+        return null;
+    }
+}
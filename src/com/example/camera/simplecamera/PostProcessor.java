@@ -0,0 +1,254 @@
+package com.example.camera.simplecamera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Process;
+
+import com.example.camera.tool.MemoryGovernor;
+import com.example.camera.tool.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes, decodes and rotates captured JPEGs on worker threads,
+ * zero shutter lag preview frames are encoded here as well.
+ * Jobs wait in a bounded queue, a full queue is handled according to {@link Policy}.
+ * Results are delivered on the thread of the result handler.
+ */
+public class PostProcessor extends BasePostProcessor {
+
+    private Handler mResultHandler = null;
+    private boolean mApplyExifRotation = false;
+    private int mJpegQuality = 95;
+    private volatile MemoryGovernor mMemoryGovernor = null;
+
+    /**
+     * One worker, 4 queued jobs and Policy.REJECT: pictures are submitted
+     * on the camera thread, which must not wait for a slow disk
+     */
+    public PostProcessor() {
+        this(1, 4, Policy.REJECT);
+    }
+
+    /**
+     * @param policy BLOCK stalls the camera thread while the queue is full
+     */
+    public PostProcessor(int threads, int queueCapacity, Policy policy) {
+        super(threads, queueCapacity, policy, new WorkerFactory());
+        if (Build.VERSION.SDK_INT >= 9) _setIdleTimeout(WORKER_IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * @param handler results are posted to it, null - results are delivered on worker threads
+     */
+    public void setResultHandler(Handler handler) {
+        mResultHandler = handler;
+    }
+
+    public Handler getResultHandler() {
+        return mResultHandler;
+    }
+
+    /**
+     * Rotate decoded Bitmaps according to EXIF of the written file
+     * or to the rotation of the encoded preview frame
+     */
+    public void setApplyExifRotation(boolean apply) {
+        mApplyExifRotation = apply;
+    }
+
+    /**
+     * Quality of JPEGs encoded from preview frames
+     */
+    public void setJpegQuality(int quality) {
+        if (quality < 1 || quality > 100)
+            throw new IllegalArgumentException("quality must be in 1..100");
+        mJpegQuality = quality;
+    }
+
+    /**
+     * Decodes are subsampled and serialized so that they fit the governor budget
+     *
+     * @param governor null - decode as requested
+     */
+    public void setMemoryGovernor(MemoryGovernor governor) {
+        mMemoryGovernor = governor;
+    }
+
+    void process(byte[] imageData, File outputFile,
+                 SimpleCamera.BitmapCreatedCallback callback, DecodeLimit limit) {
+        _submit(new Job(imageData, outputFile, callback, limit));
+    }
+
+    /**
+     * @param rotationAngle is written to EXIF, the frame itself is not rotated
+     * @param source        nv21 is given back to it once encoded or dropped, may be null
+     */
+    void processNv21(byte[] nv21, int width, int height, int rotationAngle,
+                     File outputFile, SimpleCamera.BitmapCreatedCallback callback,
+                     DecodeLimit limit, ZslBuffer source) {
+        Job job = new Job(null, outputFile, callback, limit);
+        job.mNv21 = nv21;
+        job.mNv21Source = source;
+        job.mWidth = width;
+        job.mHeight = height;
+        job.mRotationAngle = rotationAngle;
+        _submit(job);
+    }
+
+    private void _deliver(final SimpleCamera.BitmapCreatedCallback callback, final Bitmap bmp) {
+        if (callback == null) return;
+        Handler handler = mResultHandler;
+        if (handler == null) {
+            callback.done(bmp);
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.done(bmp);
+            }
+        });
+    }
+
+    /**
+     * One captured picture: encode preview frame if needed,
+     * write JPEG as is, then decode for the callback
+     */
+    private class Job extends Task {
+        byte[] mImageData;
+        final File mOutputFile;
+        final SimpleCamera.BitmapCreatedCallback mCallback;
+        final DecodeLimit mLimit;
+        byte[] mNv21 = null;
+        ZslBuffer mNv21Source = null;
+        int mWidth;
+        int mHeight;
+        /** known rotation of the picture, -1 - look into EXIF */
+        int mRotationAngle = -1;
+
+        Job(byte[] imageData, File outputFile,
+            SimpleCamera.BitmapCreatedCallback callback, DecodeLimit limit) {
+            mImageData = imageData;
+            mOutputFile = outputFile;
+            mCallback = callback;
+            mLimit = limit;
+        }
+
+        @Override
+        public void run() {
+            if (mNv21 != null) {
+                long start = _nowMs();
+                try {
+                    mImageData = _encode();
+                } finally {
+                    _releaseNv21();
+                }
+                _addStageTime(Stage.ENCODE, start);
+            }
+            boolean written = false;
+            if (mOutputFile != null && mImageData != null) {
+                long start = _nowMs();
+                written = saveJpeg(mImageData, mOutputFile);
+                if (written && mRotationAngle > 0)
+                    Utils.setRotationAngle(mOutputFile.getAbsolutePath(), mRotationAngle);
+                _addStageTime(Stage.WRITE, start);
+            }
+            if (mCallback == null) return;
+            if (mImageData == null) {
+                _deliver(mCallback, null);
+                return;
+            }
+            MemoryGovernor governor = mMemoryGovernor;
+            if (governor == null) {
+                _deliver(mCallback, _decode(0, 0, 0));
+                return;
+            }
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(mImageData, 0, mImageData.length, bounds);
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+                _deliver(mCallback, null);
+                return;
+            }
+            int sampleSize = governor.getDecodeSampleSize(bounds.outWidth, bounds.outHeight,
+                    mLimit.getSampleSize(bounds.outWidth, bounds.outHeight));
+            long bytes = MemoryGovernor.getDecodeBytes(bounds.outWidth, bounds.outHeight, sampleSize);
+            Bitmap bmp;
+            // the rotated copy is within the reservation
+            governor.beginDecode(bytes);
+            try {
+                bmp = _decode(bounds.outWidth, bounds.outHeight, sampleSize);
+            } finally {
+                governor.endDecode(bytes);
+            }
+            _deliver(mCallback, bmp);
+        }
+
+        /**
+         * @param sampleSize 0 - as the limit says
+         */
+        private Bitmap _decode(int width, int height, int sampleSize) {
+            long start = _nowMs();
+            Bitmap bmp = sampleSize == 0 ? mLimit.decode(mImageData) :
+                    mLimit.decode(mImageData, width, height, sampleSize);
+            _addStageTime(Stage.DECODE, start);
+            if (bmp != null && mApplyExifRotation) {
+                start = _nowMs();
+                int angle = mRotationAngle >= 0 ? mRotationAngle :
+                        Math.max(Utils.getRotationAngle(mImageData), 0);
+                Bitmap rotated = Utils.tryRotateBitmap(angle, bmp);
+                _addStageTime(Stage.ROTATE, start);
+                // a picture on its side is not delivered as the rotated one
+                if (rotated == null) bmp.recycle();
+                bmp = rotated;
+            }
+            return bmp;
+        }
+
+        private byte[] _encode() {
+            YuvImage image = new YuvImage(mNv21, ImageFormat.NV21, mWidth, mHeight, null);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(mNv21.length / 4);
+            if (!image.compressToJpeg(new Rect(0, 0, mWidth, mHeight), mJpegQuality, out))
+                return null;
+            return out.toByteArray();
+        }
+
+        private void _releaseNv21() {
+            if (mNv21Source != null) mNv21Source.recycle(mNv21);
+            mNv21Source = null;
+            mNv21 = null;
+        }
+
+        @Override
+        void cancel() {
+            _releaseNv21();
+            _deliver(mCallback, null);
+        }
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger mCounter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "SimpleCamera-post-" + mCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.camera.simplecamera;
+
+import com.example.camera.tool.Telemetry;
+
+/**
+ * Preallocated NV21 buffers for CameraDevice.setFrameCallback().
+ * A buffer returns to the camera when the consumer releases its frame,
+ * so no memory is allocated while the preview is running.
+ * One buffer is always left to the camera - if the consumer holds all others
+ * the new frame is dropped and its buffer is returned immediately.
+ */
+class PreviewBufferRing implements CameraDevice.FrameCallback {
+
+    interface Listener {
+        /**
+         * Called on the camera callback thread, the frame must be released
+         */
+        void onPreviewFrame(PreviewFrame frame);
+    }
+
+    private final PreviewFrame[] mFrames;
+    private final int mWidth;
+    private final int mHeight;
+    private CameraDevice mDevice = null;
+    private Listener mListener = null;
+    private Runnable mFirstFrameAction = null;
+
+    private int mInFlight = 0;
+    private volatile long mDeliveredCount = 0;
+    private volatile long mDroppedCount = 0;
+    private long mLastFrameNs = 0;
+
+    PreviewBufferRing(int count, int width, int height) {
+        if (count < 2) throw new IllegalArgumentException("count must be at least 2");
+        mWidth = width;
+        mHeight = height;
+        // NV21 has 12 bits per pixel
+        int size = width * height * 3 / 2;
+        mFrames = new PreviewFrame[count];
+        for (int i = 0; i < count; i++) {
+            mFrames[i] = new PreviewFrame(this, width, height, size);
+        }
+    }
+
+    boolean fits(int count, int width, int height) {
+        return mFrames.length == count && mWidth == width && mHeight == height;
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param action runs once on the next frame, even if the frame is dropped
+     */
+    void expectFirstFrame(Runnable action) {
+        mFirstFrameAction = action;
+    }
+
+    /**
+     * Attaching again to the same device only sets the callback,
+     * its queue already has every buffer which is not in flight
+     */
+    synchronized void attach(CameraDevice device) {
+        if (mDevice == device) {
+            device.setFrameCallback(this);
+            return;
+        }
+        mDevice = device;
+        for (PreviewFrame frame : mFrames) {
+            if (!frame.mInFlight) device.addBuffer(frame.mData);
+        }
+        device.setFrameCallback(this);
+    }
+
+    synchronized void detach() {
+        mLastFrameNs = 0;
+        if (mDevice == null) return;
+        mDevice.setFrameCallback(null);
+        mDevice = null;
+    }
+
+    synchronized int getInFlightCount() {
+        return mInFlight;
+    }
+
+    int getFrameSize() {
+        return mFrames[0].mData.length;
+    }
+
+    int getBufferCount() {
+        return mFrames.length;
+    }
+
+    long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    @Override
+    public void onFrame(byte[] data) {
+        if (data == null) return;
+        PreviewFrame frame = null;
+        for (PreviewFrame f : mFrames) {
+            if (f.mData == data) {
+                frame = f;
+                break;
+            }
+        }
+        // not our buffer
+        if (frame == null) return;
+
+        long now = System.nanoTime();
+        Telemetry telemetry = Telemetry.getDefault();
+        if (mLastFrameNs != 0)
+            telemetry.record(Telemetry.Metric.PREVIEW_FRAME_INTERVAL_US, (now - mLastFrameNs) / 1000);
+        mLastFrameNs = now;
+
+        Runnable firstFrameAction = mFirstFrameAction;
+        if (firstFrameAction != null) {
+            mFirstFrameAction = null;
+            firstFrameAction.run();
+        }
+
+        Listener listener = mListener;
+        synchronized (this) {
+            if (listener == null || mInFlight >= mFrames.length - 1) {
+                mDroppedCount++;
+                telemetry.increment(Telemetry.Metric.PREVIEW_FRAME_DROPPED);
+                if (mDevice != null) mDevice.addBuffer(data);
+                return;
+            }
+            frame.mInFlight = true;
+            frame.mTimestampNs = now;
+            mInFlight++;
+            mDeliveredCount++;
+        }
+        listener.onPreviewFrame(frame);
+    }
+
+    synchronized void release(PreviewFrame frame) {
+        if (!frame.mInFlight) return;
+        frame.mInFlight = false;
+        mInFlight--;
+        // otherwise it will be given to the next camera in attach()
+        if (mDevice != null) mDevice.addBuffer(frame.mData);
+    }
+}
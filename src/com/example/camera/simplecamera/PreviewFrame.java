@@ -0,0 +1,48 @@
+package com.example.camera.simplecamera;
+
+/**
+ * NV21 preview frame, the data belongs to the buffer ring.
+ * Call {@link #release()} as soon as the data is not needed,
+ * the buffer goes back to the camera only after that.
+ */
+public class PreviewFrame {
+    final byte[] mData;
+    final int mWidth;
+    final int mHeight;
+    final PreviewBufferRing mRing;
+    long mTimestampNs = 0;
+    boolean mInFlight = false;
+
+    PreviewFrame(PreviewBufferRing ring, int width, int height, int size) {
+        mRing = ring;
+        mWidth = width;
+        mHeight = height;
+        mData = new byte[size];
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * width of the camera stream, the display rotation is not applied
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * System.nanoTime() when the frame has been received
+     */
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    public void release() {
+        mRing.release(this);
+    }
+}
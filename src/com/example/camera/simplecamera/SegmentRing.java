@@ -0,0 +1,92 @@
+package com.example.camera.simplecamera;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Files of a segmented recording: video.mp4 gives video_0000.mp4, video_0001.mp4 ...
+ * With keepLast > 0 only the last finished segments stay on disk.
+ */
+class SegmentRing {
+
+    static class Segment {
+        final int mIndex;
+        final File mFile;
+
+        Segment(int index, File file) {
+            mIndex = index;
+            mFile = file;
+        }
+    }
+
+    private final File mDir;
+    private final String mName;
+    private final String mExtension;
+    private int mKeepLast;
+    private final LinkedList<Segment> mFinished = new LinkedList<Segment>();
+    private int mNextIndex = 0;
+
+    /**
+     * @param keepLast 0 - keep all
+     */
+    SegmentRing(File outputFile, int keepLast) {
+        mDir = outputFile.getAbsoluteFile().getParentFile();
+        String name = outputFile.getName();
+        int dot = name.lastIndexOf('.');
+        mName = dot > 0 ? name.substring(0, dot) : name;
+        mExtension = dot > 0 ? name.substring(dot) : "";
+        mKeepLast = keepLast;
+    }
+
+    /**
+     * Takes effect on the next finished segment
+     */
+    void setKeepLast(int keepLast) {
+        mKeepLast = keepLast;
+    }
+
+    Segment allocate() {
+        int index = mNextIndex++;
+        File file = new File(mDir, String.format(Locale.US, "%s_%04d%s", mName, index, mExtension));
+        return new Segment(index, file);
+    }
+
+    /**
+     * @return segments which have been deleted to keep the ring size
+     */
+    List<Segment> finish(Segment segment) {
+        mFinished.add(segment);
+        List<Segment> dropped = new ArrayList<Segment>();
+        while (mKeepLast > 0 && mFinished.size() > mKeepLast) {
+            Segment oldest = mFinished.removeFirst();
+            oldest.mFile.delete();
+            dropped.add(oldest);
+        }
+        return dropped;
+    }
+
+    /**
+     * The segment has never been recorded
+     */
+    void discard(Segment segment) {
+        if (segment.mFile.length() == 0) segment.mFile.delete();
+    }
+
+    List<File> getFinishedFiles() {
+        List<File> files = new ArrayList<File>(mFinished.size());
+        for (Segment segment : mFinished) files.add(segment.mFile);
+        return files;
+    }
+
+    /**
+     * The finished segments are handed over, the ring will not delete them
+     */
+    List<File> takeFinished() {
+        List<File> files = getFinishedFiles();
+        mFinished.clear();
+        return files;
+    }
+}
@@ -1,21 +1,34 @@
 package com.example.camera.simplecamera;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.hardware.Camera;
 import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.os.SystemClock;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
+import com.example.camera.tool.MemoryGovernor;
+import com.example.camera.tool.SizeSelector;
+import com.example.camera.tool.Telemetry;
+
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * User: Polikarpov V.
@@ -25,26 +38,143 @@ import java.util.List;
 public class SimpleCamera {
 
 
+    public enum State {
+        CLOSED,
+        OPENING,
+        PREVIEW,
+        RECORDING,
+        /** the camera is open but has no surface, see setRetainGracePeriod() */
+        RETAINED,
+        CLOSING
+    }
+
+    /**
+     * Called on the thread which has created SimpleCamera
+     */
+    public interface StateListener {
+        void onStateChanged(State from, State to);
+    }
+
     public interface BitmapCreatedCallback {
         void done(Bitmap bmp);
     }
 
+    /**
+     * What startTimeLapse() does when a shot has not been taken in its slot
+     */
+    public enum Overrun {
+        /** late slots are given up, the next shot waits for the next slot */
+        SKIP,
+        /** late slots are shot right away one after another until the schedule is met */
+        CATCH_UP
+    }
+
+    public interface TimeLapseListener {
+        /**
+         * Called on a post processor worker after the file is written
+         *
+         * @param file null if the post processor has dropped the picture
+         */
+        void onTimeLapseShot(int index, File file);
+
+        /**
+         * Called on the thread which has created SimpleCamera
+         */
+        void onTimeLapseDone(TimeLapseStats stats);
+    }
+
+    /**
+     * Called on the thread which has created SimpleCamera
+     */
+    public interface CameraListener {
+        /**
+         * @param openMs      Camera.open() time
+         * @param configureMs parameters negotiation and preview start time
+         */
+        void onPreviewStarted(long openMs, long configureMs);
+
+        /**
+         * @param coldStartMs from startPreview() call to the first preview frame
+         */
+        void onFirstPreviewFrame(long coldStartMs);
+
+        void onCameraError(Exception e);
+    }
+
+    /**
+     * Called on the camera thread,
+     * every frame must be released
+     */
+    public interface PreviewFrameListener {
+        void onPreviewFrame(PreviewFrame frame);
+    }
+
+    /**
+     * Called on the thread which has created SimpleCamera
+     */
+    public interface SegmentListener {
+        /**
+         * @param gapMs from the end of the previous segment to the start of this one,
+         *              0 for the first one and for gapless switches
+         */
+        void onSegmentStarted(int index, File file, long gapMs);
+
+        void onSegmentFinished(int index, File file);
+
+        /**
+         * The segment has been deleted to keep only the last ones
+         */
+        void onSegmentDeleted(int index, File file);
+    }
+
+    /**
+     * Called on the thread which has created SimpleCamera
+     */
+    public interface MotionListener {
+        /**
+         * @param level share of changed blocks, see MotionDetector.getLevel()
+         */
+        void onMotionStarted(float level);
+
+        /**
+         * @param files recorded for the event, pre-roll included, empty if motion recording is off.
+         *              Move them away, the next event may reuse the names
+         */
+        void onMotionStopped(List<File> files);
+    }
+
     private int mCameraIndex = 0;
     private Camera mCamera = null;
+    /** mCamera for the capture pipeline */
+    private CameraDevice mDevice = null;
     private MediaRecorder mRecorder = null;
     private SurfaceView mSurfaceView;
-    private SurfaceHolder mReadySurfaceHolder = null;
+    private volatile SurfaceHolder mReadySurfaceHolder = null;
 
     private Shooter mShooter = null;
+    private volatile BurstShooter mBurstShooter = null;
+    private volatile TimeLapseShooter mTimeLapseShooter = null;
     private File mOutputVideoFile = null;
     private File mOutputImageFile = null;
 
     private CamcorderProfile mCamcorderProfile = null;
+    private int mCamcorderQuality = -1;
+    private String mFocusMode = null;
+    private CameraConfigCache mConfigCache = null;
+    private volatile MemoryGovernor mMemoryGovernor = null;
+    /** before the governor has had its say, goes to the config cache */
+    private Camera.Size mNegotiatedPictureSize = null;
 
     private int mRotationAngle = 0;
     private Camera.Size mVideoSize = null;
     private Camera.Size mPictureSize = null;
-    private Camera.Size mPreviewSize = null;
+    private volatile Camera.Size mPreviewSize = null;
+    private volatile Camera.Size mPreviewFrameSize = null;
+    private SizeSelector mPreviewSizeSelector = new SizeSelector();
+    private volatile SizeSelector.Decision mPreviewSizeDecision = null;
+    private long mMaxPreviewPixelsPerSecond = 0;
+    private volatile int mSurfaceWidth = 0;
+    private volatile int mSurfaceHeight = 0;
     private boolean mCallVideoAutoFocus = false;
     private boolean mCallPictureAutoFocus = false;
 
@@ -59,41 +189,131 @@ public class SimpleCamera {
      * If Preview has been started outside
      * if preview is really processing now, mCamera != null
      */
-    private boolean mDoingPreview = false;
+    private volatile boolean mDoingPreview = false;
 
     /**
      * If Record has been started outside
      * if Record is really processing now, mRecorder != null
      */
-    private boolean mDoingRecord = false;
+    private volatile boolean mDoingRecord = false;
+
+    private volatile State mState = State.CLOSED;
+    private StateListener mStateListener = null;
+    private final AtomicBoolean mSyncPosted = new AtomicBoolean();
+    private final AtomicInteger mCoalescedCommandCount = new AtomicInteger();
+    private volatile int mOpenCount = 0;
+    private volatile int mCloseCount = 0;
+
+    private long mFocusStartMs = 0;
+
+    private long mSegmentDurationMs = 0;
+    private long mSegmentMaxBytes = 0;
+    private int mSegmentKeepLast = 0;
+    private SegmentListener mSegmentListener = null;
+    private SegmentRing mSegmentRing = null;
+    private SegmentRing.Segment mSegment = null;
+    /** already given to the recorder, gapless switch */
+    private SegmentRing.Segment mNextSegment = null;
+    private volatile long mLastSegmentGapMs = -1;
+    private volatile long mMaxSegmentGapMs = -1;
+
+    private volatile MotionDetector mMotionDetector = null;
+    private MotionListener mMotionListener = null;
+    /** the fields below belong to the camera thread */
+    private boolean mMotionRecording = false;
+    private int mMotionPreRollSegments = 0;
+    /** motion is going on */
+    private boolean mMotionEvent = false;
 
+    /**
+     * the thread which has created SimpleCamera, user callbacks go there
+     */
     private Handler mHandler = new Handler();
 
+    /**
+     * all android.hardware.Camera calls are done on this thread,
+     * Camera callbacks come here as well
+     */
+    private HandlerThread mCameraThread = null;
+    private Handler mCameraHandler = null;
+
+    private CameraListener mCameraListener = null;
+    private volatile long mStartPreviewRequestMs = 0;
+    private volatile long mLastOpenTimeMs = -1;
+    private volatile long mLastConfigureTimeMs = -1;
+    private volatile long mLastColdStartTimeMs = -1;
+
+    private volatile long mRetainGracePeriodMs = 0;
+    private volatile long mSurfaceReadyMs = 0;
+    private volatile long mLastReattachTimeMs = -1;
+    private volatile int mReattachCount = 0;
+    /**
+     * the camera is kept open without a surface
+     */
+    private boolean mSurfaceDetached = false;
+    /**
+     * the surface has been changed while recording
+     */
+    private boolean mPreviewDisplayStale = false;
+
+    private PostProcessor mPostProcessor = null;
+
+    private PreviewFrameListener mPreviewFrameListener = null;
+    private int mPreviewBufferCount = 3;
+    private PreviewBufferRing mPreviewBufferRing = null;
+
+    private int mZslDepth = 0;
+    private volatile ZslBuffer mZslBuffer = null;
+
+    private final PreviewBufferRing.Listener mPreviewDispatcher = new PreviewBufferRing.Listener() {
+        @Override
+        public void onPreviewFrame(PreviewFrame frame) {
+            MotionDetector detector = mMotionDetector;
+            if (detector != null) _detectMotion(detector, frame);
+            ZslBuffer zsl = mZslBuffer;
+            if (zsl != null) zsl.push(frame.mData, frame.mTimestampNs);
+            PreviewFrameListener listener = mPreviewFrameListener;
+            if (listener != null) listener.onPreviewFrame(frame);
+            else frame.release();
+        }
+    };
+
     private class Shooter implements Camera.PictureCallback {
         BitmapCreatedCallback mCallback;
+        File mOutputFile;
+        DecodeLimit mLimit;
         int mCalledCounter = 0;
         boolean mDone = false;
+        long mFocusStartMs = 0;
+        long mShutterMs = 0;
 
-        Shooter(BitmapCreatedCallback callback) {
+        Shooter(File outputFile, BitmapCreatedCallback callback, DecodeLimit limit) {
+            mOutputFile = outputFile;
             mCallback = callback;
+            mLimit = limit;
         }
 
         void take() {
-            if (mCallback == null) return;
+            if (mCallback == null && mOutputFile == null) return;
             if (mCamera == null) return;
             Camera.AutoFocusCallback focusCallback = new Camera.AutoFocusCallback() {
                 @Override
                 public void onAutoFocus(boolean success, Camera camera) {
-                    if (mCallback == null) return;
+                    if (mFocusStartMs > 0) Telemetry.getDefault().record(Telemetry.Metric.AUTOFOCUS_MS,
+                            SystemClock.elapsedRealtime() - mFocusStartMs);
+                    if (mCallback == null && mOutputFile == null) return;
                     if (mCamera == null) return;
+                    mShutterMs = SystemClock.elapsedRealtime();
                     mCamera.takePicture(null, new RawCallback(), new PostViewCallback(), Shooter.this);
                 }
             };
             if (mCallPictureAutoFocus) {
                 try {
+                    mFocusStartMs = SystemClock.elapsedRealtime();
                     mCamera.autoFocus(focusCallback);
                 } catch (Exception e) {
                     mCallPictureAutoFocus = false;
+                    mFocusStartMs = 0;
                     focusCallback.onAutoFocus(true, mCamera);
                 }
             } else {
@@ -103,16 +323,17 @@ public class SimpleCamera {
 
         @Override
         public void onPictureTaken(byte[] imageData, Camera c) {
+            Telemetry.getDefault().record(Telemetry.Metric.SHUTTER_TO_JPEG_MS,
+                    SystemClock.elapsedRealtime() - mShutterMs);
             _stopTakingPicture();
-            if (imageData == null) {
-                mCallback.done(null);
-                mCallback = null;
-            }
-            if (mCallback == null) return;
-            if (imageData == null) return;
-            Bitmap bmp = BitmapFactory.decodeByteArray(imageData, 0, imageData.length);
-            mCallback.done(bmp);
+            File outputFile = mOutputFile;
+            BitmapCreatedCallback callback = mCallback;
+            mOutputFile = null;
             mCallback = null;
+            if (outputFile == null && callback == null) return;
+            // the camera has already encoded JPEG - store it as is,
+            //  decoding and writing go to the worker threads
+            _getPostProcessor().process(imageData, outputFile, callback, mLimit);
         }
 
         // Do nothing, our goal is JPEG !
@@ -128,30 +349,539 @@ public class SimpleCamera {
         }
     }
 
+    private final BurstShooter.Host mBurstHost = new BurstShooter.Host() {
+        @Override
+        public CameraDevice getDevice() {
+            return mDevice;
+        }
+
+        @Override
+        public void postDelayed(Runnable r, long delayMs) {
+            mCameraHandler.postDelayed(r, delayMs);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable r) {
+            mCameraHandler.removeCallbacks(r);
+        }
+
+        @Override
+        public boolean callAutoFocus() {
+            return mCallPictureAutoFocus;
+        }
+
+        @Override
+        public void onAutoFocusFailed() {
+            mCallPictureAutoFocus = false;
+        }
+
+        @Override
+        public void onBurstDone(BurstShooter shooter) {
+            if (mBurstShooter == shooter) mBurstShooter = null;
+            _notifyBurstDone(shooter.getSink(), shooter.getStats());
+        }
+    };
+
+    // while takePicture() is shooting, the time lapse slot waits
+    private static final long TIME_LAPSE_BUSY_RETRY_MS = 50;
+
+    /**
+     * Shoots in the slots start + n * interval of elapsedRealtime(). Every delay is
+     * computed from its slot, so a late shot does not shift the ones after it.
+     * Focus, exposure and white balance are locked once before the first slot,
+     * JPEGs are written as is through the post processor.
+     */
+    private class TimeLapseShooter implements CameraDevice.PictureCallback {
+        final long mIntervalMs;
+        final int mCount;
+        final Overrun mOverrun;
+        final File mDir;
+        final String mPrefix;
+        final TimeLapseListener mListener;
+        final TimeLapseStats mStats;
+        /** next slot to shoot */
+        int mSlot = 0;
+        long mShotStartMs = 0;
+        long mJitterMs = 0;
+        boolean mTaking = false;
+
+        private final Runnable mShootRunnable = new Runnable() {
+            @Override
+            public void run() {
+                _shoot();
+            }
+        };
+
+        private final BurstSink mFileSink = new BurstSink() {
+            @Override
+            public void onPicture(int index, byte[] jpeg) {
+                File file = getFile(index);
+                if (jpeg == null || !BasePostProcessor.saveJpeg(jpeg, file)) file = null;
+                if (mListener != null) mListener.onTimeLapseShot(index, file);
+            }
+
+            @Override
+            public void onBurstDone(BurstStats stats) {
+            }
+        };
+
+        TimeLapseShooter(long intervalMs, int count, Overrun overrun,
+                         File dir, String prefix, TimeLapseListener listener) {
+            mIntervalMs = intervalMs;
+            mCount = count;
+            mOverrun = overrun;
+            mDir = dir;
+            mPrefix = prefix;
+            mListener = listener;
+            mStats = new TimeLapseStats(intervalMs);
+        }
+
+        File getFile(int index) {
+            return new File(mDir, String.format(Locale.US, "%s_%05d.jpg", mPrefix, index));
+        }
+
+        void start() {
+            if (mDevice == null) {
+                abort();
+                return;
+            }
+            final long focusStartMs = SystemClock.elapsedRealtime();
+            CameraDevice.FocusCallback focusCallback = new CameraDevice.FocusCallback() {
+                @Override
+                public void onFocus(boolean success) {
+                    if (mTimeLapseShooter != TimeLapseShooter.this) return;
+                    long now = SystemClock.elapsedRealtime();
+                    if (mCallPictureAutoFocus) Telemetry.getDefault().record(
+                            Telemetry.Metric.AUTOFOCUS_MS, now - focusStartMs);
+                    _lock(true);
+                    mStats.mStartMs = SystemClock.elapsedRealtime();
+                    _shoot();
+                }
+            };
+            // focus is not cancelled, so it stays where it is till the end
+            if (mCallPictureAutoFocus) {
+                try {
+                    mDevice.autoFocus(focusCallback);
+                } catch (Exception e) {
+                    mCallPictureAutoFocus = false;
+                    focusCallback.onFocus(true);
+                }
+            } else {
+                focusCallback.onFocus(true);
+            }
+        }
+
+        void _shoot() {
+            if (mTimeLapseShooter != this || mTaking) return;
+            if (mDevice == null) {
+                abort();
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (mShooter != null) {
+                mCameraHandler.postDelayed(mShootRunnable, TIME_LAPSE_BUSY_RETRY_MS);
+                return;
+            }
+            long late = now - _getSlotMs(mSlot);
+            if (mOverrun == Overrun.SKIP && late >= mIntervalMs) {
+                // the latest slot which has begun is shot, the ones before it are missed
+                int missed = (int) (late / mIntervalMs);
+                if (mCount > 0) missed = Math.min(missed, mCount - 1 - mSlot);
+                mSlot += missed;
+                mStats.mMissedCount += missed;
+                late = now - _getSlotMs(mSlot);
+            }
+            if (mCount > 0 && mSlot >= mCount) {
+                _finish(now);
+                return;
+            }
+            mSlot++;
+            mJitterMs = late;
+            mShotStartMs = now;
+            mTaking = true;
+            try {
+                mDevice.takePicture(this);
+            } catch (Exception e) {
+                e.printStackTrace();
+                Telemetry.getDefault().error("SimpleCamera.startTimeLapse", e);
+                mTaking = false;
+                abort();
+            }
+        }
+
+        @Override
+        public void onPicture(byte[] imageData) {
+            if (mTimeLapseShooter != this) return;
+            mTaking = false;
+            long now = SystemClock.elapsedRealtime();
+            mStats.addShot(mJitterMs, now - mShotStartMs);
+            Telemetry.getDefault().record(Telemetry.Metric.SHUTTER_TO_JPEG_MS, now - mShotStartMs);
+            try {
+                mDevice.startPreview();
+            } catch (Exception e) {
+                e.printStackTrace();
+                Telemetry.getDefault().error("SimpleCamera.startTimeLapse", e);
+            }
+            // files are numbered by shots, missed slots leave no gaps
+            int index = mStats.mShotCount - 1;
+            if (imageData != null) _getPostProcessor().processBurst(imageData, index, mFileSink);
+            else mFileSink.onPicture(index, null);
+
+            if (mStats.mCancelled || (mCount > 0 && mSlot >= mCount)) {
+                _finish(now);
+                return;
+            }
+            long delay = _getSlotMs(mSlot) - now;
+            if (delay > 0) mCameraHandler.postDelayed(mShootRunnable, delay);
+            else _shoot();
+        }
+
+        /**
+         * A picture being taken is still written
+         */
+        void cancel() {
+            if (mTimeLapseShooter != this) return;
+            mStats.mCancelled = true;
+            if (!mTaking) _finish(SystemClock.elapsedRealtime());
+        }
+
+        /**
+         * The camera is going away, the picture being taken will not come
+         */
+        void abort() {
+            if (mTimeLapseShooter != this) return;
+            mStats.mCancelled = true;
+            _finish(SystemClock.elapsedRealtime());
+        }
+
+        private long _getSlotMs(int slot) {
+            return mStats.mStartMs + slot * mIntervalMs;
+        }
+
+        private void _finish(long now) {
+            mCameraHandler.removeCallbacks(mShootRunnable);
+            mTimeLapseShooter = null;
+            _lock(false);
+            if (mStats.mStartMs != 0) mStats.mDurationMs = now - mStats.mStartMs;
+            _notifyTimeLapseDone(mListener, mStats);
+        }
+
+        /**
+         * AE and AWB locks exist since API 14 and not on every camera
+         */
+        private void _lock(boolean lock) {
+            if (mCamera == null) return;
+            try {
+                if (Build.VERSION.SDK_INT >= 14) {
+                    Camera.Parameters parameters = mCamera.getParameters();
+                    boolean supported = false;
+                    if (parameters.isAutoExposureLockSupported()) {
+                        parameters.setAutoExposureLock(lock);
+                        supported = true;
+                    }
+                    if (parameters.isAutoWhiteBalanceLockSupported()) {
+                        parameters.setAutoWhiteBalanceLock(lock);
+                        supported = true;
+                    }
+                    if (supported) mCamera.setParameters(parameters);
+                }
+                if (!lock && mCallPictureAutoFocus) mCamera.cancelAutoFocus();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                Telemetry.getDefault().error("SimpleCamera.startTimeLapse", e);
+            }
+        }
+    }
+
     private final SurfaceHolder.Callback mSurfaceHolderCallback =
             new SurfaceHolder.Callback() {
                 @Override
                 public void surfaceCreated(SurfaceHolder holder) {
+                    mSurfaceReadyMs = SystemClock.elapsedRealtime();
                     mReadySurfaceHolder = holder;
+                    if (mDoingPreview) _requestSync();
                 }
 
                 @Override
                 public void surfaceChanged(SurfaceHolder holder,
                                            int format, int width, int height) {
+                    mSurfaceWidth = width;
+                    mSurfaceHeight = height;
                     mReadySurfaceHolder = holder;
+                    if (mDoingPreview) _requestSync();
                 }
 
                 @Override
                 public void surfaceDestroyed(SurfaceHolder holder) {
                     if (mReadySurfaceHolder != holder) return;
-                    release();
+                    if (mRetainGracePeriodMs > 0 && mDoingPreview) {
+                        // keep the camera for a while, a new surface may come soon
+                        mReadySurfaceHolder = null;
+                        _runOnCameraThread(mDetachSurfaceRunnable);
+                        _waitForCameraThread(SURFACE_RELEASE_TIMEOUT_MS);
+                        return;
+                    }
+                    // release(), waiting before the quit: Looper.quit() drops
+                    //  what is still queued, the wait would time out
+                    stopRecording();
+                    stopPreview();
+                    // the camera must not touch the surface after we return
+                    _waitForCameraThread(SURFACE_RELEASE_TIMEOUT_MS);
+                    _quitCameraThreadWhenIdle();
                     mSurfaceView = null;
                     mReadySurfaceHolder = null;
                 }
             };
 
+    private static final long SURFACE_RELEASE_TIMEOUT_MS = 2000;
+
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            _sync();
+        }
+    };
+
+    private final Runnable mDetachSurfaceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            _detachSurface(mRetainGracePeriodMs);
+        }
+    };
+
+    private final Runnable mGraceReleaseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mSurfaceDetached) return;
+            // nobody has come back for the camera
+            mDoingRecord = false;
+            mDoingPreview = false;
+            _sync();
+            _quitCameraThreadWhenIdle();
+        }
+    };
+
+    private final Runnable mAttachBuffersRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mCamera != null) _attachPreviewBuffers();
+        }
+    };
+
+    //////////////  CAMERA THREAD  ///////////////
+
+    private synchronized Handler _getCameraHandler() {
+        if (mCameraHandler == null) {
+            mCameraThread = new HandlerThread("SimpleCamera", Process.THREAD_PRIORITY_DISPLAY);
+            mCameraThread.start();
+            mCameraHandler = new Handler(mCameraThread.getLooper());
+        }
+        return mCameraHandler;
+    }
+
+    private void _runOnCameraThread(Runnable runnable) {
+        Handler handler = _getCameraHandler();
+        if (Looper.myLooper() == handler.getLooper()) runnable.run();
+        else handler.post(runnable);
+    }
+
+    /**
+     * Commands only change mDoingPreview and mDoingRecord, then the camera thread
+     * brings the camera to the requested state. Commands coming before it gets there
+     * are merged: stopPreview() followed by startPreview() does not reopen the camera.
+     */
+    private void _requestSync() {
+        Handler handler = _getCameraHandler();
+        if (Looper.myLooper() == handler.getLooper()) {
+            _sync();
+        } else if (mSyncPosted.compareAndSet(false, true)) {
+            if (!handler.post(mSyncRunnable)) mSyncPosted.set(false);
+        } else {
+            mCoalescedCommandCount.incrementAndGet();
+        }
+    }
+
+    private void _sync() {
+        // later commands need a new pass
+        mSyncPosted.set(false);
+        if (!mDoingRecord && mRecorder != null) _stopRecording();
+        if (!mDoingPreview) {
+            if (mCamera != null) _stopPreview();
+        } else if (mCamera == null) {
+            _startPreview();
+        } else if (mSurfaceDetached && mReadySurfaceHolder != null) {
+            _reattachSurface();
+        }
+        if (mDoingRecord && mRecorder == null && mCamera != null) _startRecording();
+        _updateState();
+    }
+
+    private void _updateState() {
+        if (mCamera == null) _setState(State.CLOSED);
+        else if (mSurfaceDetached) _setState(State.RETAINED);
+        else if (mRecorder != null) _setState(State.RECORDING);
+        else _setState(State.PREVIEW);
+    }
+
+    private void _setState(final State state) {
+        final State old = mState;
+        if (old == state) return;
+        mState = state;
+        final StateListener listener = mStateListener;
+        if (listener == null) return;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onStateChanged(old, state);
+            }
+        });
+    }
+
+    /**
+     * No thread is started to wait for, none is idle as well
+     *
+     * @return false if the camera thread is still busy
+     */
+    private boolean _waitForCameraThread(long timeoutMs) {
+        final Handler handler;
+        synchronized (this) {
+            handler = mCameraHandler;
+        }
+        if (handler == null) return true;
+        if (Looper.myLooper() == handler.getLooper()) return true;
+        final CountDownLatch latch = new CountDownLatch(1);
+        // false if the thread has quit meanwhile
+        if (!handler.post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        })) return true;
+        try {
+            return latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * The thread quits when everything posted before has been done
+     * and nothing has been started again meanwhile
+     */
+    private void _quitCameraThreadWhenIdle() {
+        final Handler handler;
+        synchronized (this) {
+            handler = mCameraHandler;
+        }
+        if (handler == null) return;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimpleCamera.this) {
+                    if (mCameraHandler != handler) return;
+                    if (mDoingPreview || mDoingRecord || mCamera != null) return;
+                    // a _waitForCameraThread() latch posted meanwhile still runs
+                    if (Build.VERSION.SDK_INT >= 18) mCameraThread.quitSafely();
+                    else mCameraThread.quit();
+                    mCameraThread = null;
+                    mCameraHandler = null;
+                }
+            }
+        });
+    }
+
+    private void _notifyPreviewStarted(final long openMs, final long configureMs) {
+        final CameraListener listener = mCameraListener;
+        if (listener == null) return;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPreviewStarted(openMs, configureMs);
+            }
+        });
+    }
+
+    private void _notifyFirstPreviewFrame(final long coldStartMs) {
+        final CameraListener listener = mCameraListener;
+        if (listener == null) return;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFirstPreviewFrame(coldStartMs);
+            }
+        });
+    }
+
+    private void _notifyError(final Exception e) {
+        Telemetry.getDefault().error("SimpleCamera", e);
+        final CameraListener listener = mCameraListener;
+        if (listener == null) return;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onCameraError(e);
+            }
+        });
+    }
+
+    private void _notifyBurstDone(final BurstSink sink, final BurstStats stats) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                sink.onBurstDone(stats);
+            }
+        });
+    }
+
+    private void _notifyTimeLapseDone(final TimeLapseListener listener, final TimeLapseStats stats) {
+        if (listener == null) return;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onTimeLapseDone(stats);
+            }
+        });
+    }
+
+    private void _notifySegmentStarted(final SegmentRing.Segment segment, final long gapMs) {
+        final SegmentListener listener = mSegmentListener;
+        if (listener == null) return;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onSegmentStarted(segment.mIndex, segment.mFile, gapMs);
+            }
+        });
+    }
+
+    private void _notifySegmentFinished(final SegmentRing.Segment segment, final boolean deleted) {
+        final SegmentListener listener = mSegmentListener;
+        if (listener == null) return;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (deleted) listener.onSegmentDeleted(segment.mIndex, segment.mFile);
+                else listener.onSegmentFinished(segment.mIndex, segment.mFile);
+            }
+        });
+    }
+
+    private void _notifyPictureFailed(final BitmapCreatedCallback callback) {
+        if (callback == null) return;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.done(null);
+            }
+        });
+    }
+
     //////////////  INIT/RELEASE  ///////////////
 
+    /**
+     * A surface which already exists, e.g. left by another SimpleCamera, is taken at once
+     */
     @SuppressWarnings("deprecation")
     public void init(SurfaceView surfaceView) {
         if (mSurfaceView != surfaceView) {
@@ -159,10 +889,43 @@ public class SimpleCamera {
             if (Build.VERSION.SDK_INT < 11) {
                 mSurfaceView.getHolder().setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
             }
-            mSurfaceView.getHolder().removeCallback(mSurfaceHolderCallback);
-            mSurfaceView.getHolder().addCallback(mSurfaceHolderCallback);
             mReadySurfaceHolder = null;
         }
+        SurfaceHolder holder = mSurfaceView.getHolder();
+        holder.removeCallback(mSurfaceHolderCallback);
+        holder.addCallback(mSurfaceHolderCallback);
+        if (mReadySurfaceHolder == null && holder.getSurface() != null && holder.getSurface().isValid()) {
+            Rect frame = holder.getSurfaceFrame();
+            mSurfaceWidth = frame.width();
+            mSurfaceHeight = frame.height();
+            mSurfaceReadyMs = SystemClock.elapsedRealtime();
+            mReadySurfaceHolder = holder;
+            if (mDoingPreview) _requestSync();
+        }
+    }
+
+    /**
+     * Gives the surface up but keeps the camera for gracePeriodMs (RETAINED state),
+     * init() with a surface continues the preview. Lets another SimpleCamera
+     * take the same SurfaceView, returns when the camera has let the surface go.
+     *
+     * @param gracePeriodMs 0 - release the camera right away
+     */
+    public void detachSurface(final long gracePeriodMs) {
+        if (gracePeriodMs < 0)
+            throw new IllegalArgumentException("gracePeriodMs must not be negative");
+        SurfaceView view = mSurfaceView;
+        if (view != null) view.getHolder().removeCallback(mSurfaceHolderCallback);
+        mReadySurfaceHolder = null;
+        if (!mDoingPreview) return;
+        _runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                _detachSurface(gracePeriodMs);
+            }
+        });
+        // the camera must not touch the surface after we return
+        _waitForCameraThread(SURFACE_RELEASE_TIMEOUT_MS);
     }
 
     public int setCameraIndex(int index) {
@@ -179,6 +942,140 @@ public class SimpleCamera {
         return mPreviewSize;
     }
 
+    /**
+     * Size of NV21 preview frames, the display rotation is not applied
+     */
+    public Camera.Size getPreviewFrameSize() {
+        return mPreviewFrameSize;
+    }
+
+    /**
+     * Negotiated camera configuration is kept there,
+     * the next start applies it without probing the camera
+     *
+     * @param cache may be shared between several SimpleCamera, null - negotiate every time
+     */
+    public void setConfigCache(CameraConfigCache cache) {
+        mConfigCache = cache;
+    }
+
+    /**
+     * Reads the cached configuration of the camera on the camera thread, so that
+     * the next open waits neither for the cache file nor for CamcorderProfile.
+     * For when preopen() is not possible, e.g. the camera is used by another SimpleCamera.
+     * The surface size is taken as in preopen()
+     */
+    public void prefetchConfig(int surfaceWidth, int surfaceHeight) {
+        final CameraConfigCache cache = mConfigCache;
+        if (cache == null) return;
+        if (mSurfaceWidth <= 0 || mSurfaceHeight <= 0) {
+            mSurfaceWidth = surfaceWidth;
+            mSurfaceHeight = surfaceHeight;
+        }
+        _runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mCamera != null) return;
+                CameraConfigCache.Entry entry = cache.peek(_getCameraConfigKey());
+                if (entry == null || entry.mProfileQuality < 0) return;
+                try {
+                    CamcorderProfile.get(mCameraIndex, entry.mProfileQuality);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    Telemetry.getDefault().error("SimpleCamera.prefetchConfig", e);
+                }
+            }
+        });
+        _quitCameraThreadWhenIdle();
+    }
+
+    /**
+     * Picture size and decodes of taken pictures are kept within the governor budget,
+     * the post processor gets the governor as well. Applies from the next camera open
+     *
+     * @param governor null - no memory control
+     */
+    public void setMemoryGovernor(MemoryGovernor governor) {
+        mMemoryGovernor = governor;
+        _getPostProcessor().setMemoryGovernor(governor);
+    }
+
+    public MemoryGovernor getMemoryGovernor() {
+        return mMemoryGovernor;
+    }
+
+    /**
+     * @return size or a smaller supported one whose JPEG fits the memory budget
+     */
+    private Camera.Size _governPictureSize(List<Camera.Size> sizes, Camera.Size size) {
+        MemoryGovernor governor = mMemoryGovernor;
+        if (governor == null || sizes == null) return size;
+        int preferred = sizes.indexOf(size);
+        if (preferred < 0) return size;
+        int[] widths = new int[sizes.size()];
+        int[] heights = new int[sizes.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = sizes.get(i).width;
+            heights[i] = sizes.get(i).height;
+        }
+        return sizes.get(governor.selectPictureSize(widths, heights, preferred));
+    }
+
+    /**
+     * Preview start and errors are reported there,
+     * startPreview() itself returns immediately
+     */
+    public void setCameraListener(CameraListener listener) {
+        mCameraListener = listener;
+    }
+
+    public void setStateListener(StateListener listener) {
+        mStateListener = listener;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * @return Camera.open() calls which have succeeded
+     */
+    public int getOpenCount() {
+        return mOpenCount;
+    }
+
+    public int getCloseCount() {
+        return mCloseCount;
+    }
+
+    /**
+     * @return commands which have been merged into an already pending one
+     */
+    public int getCoalescedCommandCount() {
+        return mCoalescedCommandCount.get();
+    }
+
+    /**
+     * @return Camera.open() time of the last start, -1 if there was no start
+     */
+    public long getLastOpenTimeMs() {
+        return mLastOpenTimeMs;
+    }
+
+    /**
+     * @return parameters negotiation and preview start time of the last start
+     */
+    public long getLastConfigureTimeMs() {
+        return mLastConfigureTimeMs;
+    }
+
+    /**
+     * @return from startPreview() call to the first frame of the last start
+     */
+    public long getLastColdStartTimeMs() {
+        return mLastColdStartTimeMs;
+    }
+
     public void setMaxPictureSize(short width, short height) {
         if (width <= 0 || height <= 0)
             throw new IllegalArgumentException("width and height must be positive");
@@ -200,6 +1097,33 @@ public class SimpleCamera {
         mMaxPreviewHeight = height;
     }
 
+    /**
+     * @param selector chooses the preview size for the shown surface,
+     *                 null - the biggest one within setMaxPreviewSize()
+     */
+    public void setPreviewSizeSelector(SizeSelector selector) {
+        mPreviewSizeSelector = selector;
+    }
+
+    /**
+     * Sizes delivering more pixels per second are chosen only if nothing else fits
+     *
+     * @param pixelsPerSecond 0 - no budget
+     */
+    public void setMaxPreviewPixelsPerSecond(long pixelsPerSecond) {
+        if (pixelsPerSecond < 0)
+            throw new IllegalArgumentException("pixelsPerSecond must not be negative");
+        mMaxPreviewPixelsPerSecond = pixelsPerSecond;
+    }
+
+    /**
+     * @return how the current preview size scores and what it costs,
+     * null if the preview is not started or there is no selector
+     */
+    public SizeSelector.Decision getPreviewSizeDecision() {
+        return mPreviewSizeDecision;
+    }
+
     public void setRotationAngle(int rotationAngle) {
         if (rotationAngle != 0 && rotationAngle != 90 &&
                 rotationAngle != 180 && rotationAngle != 270)
@@ -207,9 +1131,38 @@ public class SimpleCamera {
         mRotationAngle = rotationAngle;
     }
 
+    /**
+     * Retained camera: when the surface is destroyed the camera and the recorder
+     * are kept open for gracePeriodMs and the preview continues on the next surface.
+     * The camera is released only if no surface comes during this period.
+     *
+     * @param gracePeriodMs 0 - release the camera with the surface
+     */
+    public void setRetainGracePeriod(long gracePeriodMs) {
+        if (gracePeriodMs < 0)
+            throw new IllegalArgumentException("gracePeriodMs must not be negative");
+        mRetainGracePeriodMs = gracePeriodMs;
+    }
+
+    /**
+     * @return from the new surface to the restarted preview of the retained camera,
+     * -1 if the camera has never been reattached
+     */
+    public long getLastReattachTimeMs() {
+        return mLastReattachTimeMs;
+    }
+
+    public int getReattachCount() {
+        return mReattachCount;
+    }
+
+    /**
+     * Returns immediately, the camera is released on the camera thread
+     */
     public void release() {
         stopRecording();
         stopPreview();
+        _quitCameraThreadWhenIdle();
         // surface view has its own lifecycle
         //  - moved to surfaceDestroyed()
         // mSurfaceView = null;
@@ -218,50 +1171,200 @@ public class SimpleCamera {
 
     /////////////  PREVIEW  //////////////
 
+    /**
+     * Returns immediately, the camera is opened on the camera thread,
+     * see setCameraListener()
+     */
     public void startPreview() {
         if (mDoingPreview) return;
         mDoingPreview = true;
-        _startPreview();
+        mStartPreviewRequestMs = SystemClock.elapsedRealtime();
+        _requestSync();
+    }
+
+    /**
+     * Opens and configures the camera before there is a surface, so that
+     * a surface coming later only has to start the preview (RETAINED state till then).
+     * The surface size the configuration depends on is taken from
+     * the SurfaceView given to init() or from surfaceWidth x surfaceHeight.
+     *
+     * @param timeoutMs the camera is released if no surface comes within it
+     */
+    public void preopen(int surfaceWidth, int surfaceHeight, final long timeoutMs) {
+        if (timeoutMs < 0)
+            throw new IllegalArgumentException("timeoutMs must not be negative");
+        if (mDoingPreview) return;
+        if (mSurfaceWidth <= 0 || mSurfaceHeight <= 0) {
+            mSurfaceWidth = surfaceWidth;
+            mSurfaceHeight = surfaceHeight;
+        }
+        mDoingPreview = true;
+        mStartPreviewRequestMs = SystemClock.elapsedRealtime();
+        _runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                _preopen(timeoutMs);
+            }
+        });
     }
 
     public void stopPreview() {
         if (!mDoingPreview) return;
         mDoingPreview = false;
-        _stopPreview();
+        _requestSync();
     }
 
+    private final Camera.PreviewCallback mFirstFrameCallback = new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            _onFirstPreviewFrame();
+        }
+    };
+
+    private final Runnable mFirstFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            _onFirstPreviewFrame();
+        }
+    };
+
     private void _startPreview() {
         if (mCamera != null) _stopPreview();
         if (!mDoingPreview) return;
-        if (mReadySurfaceHolder == null) {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    _startPreview();
-                }
-            });
+        // surfaceCreated() will start it
+        if (mReadySurfaceHolder == null) return;
+
+        long configureStart = _openCamera();
+        if (configureStart < 0) return;
+        try {
+            mCamera.setPreviewDisplay(mReadySurfaceHolder);
+            mCamera.startPreview();
+        } catch (IOException e) {
+            e.printStackTrace();
+            _notifyError(e);
+        }
+        mLastConfigureTimeMs = SystemClock.elapsedRealtime() - configureStart;
+        Telemetry.getDefault().record(Telemetry.Metric.CONFIGURE_MS, mLastConfigureTimeMs);
+        _notifyPreviewStarted(mLastOpenTimeMs, mLastConfigureTimeMs);
+
+        // recording has been waiting for the camera
+        if (mDoingRecord && mRecorder == null) _startRecording();
+    }
+
+    /**
+     * Opens and configures the camera, the preview is not started
+     *
+     * @return when the configuration has started, -1 if the camera has not been opened
+     */
+    private long _openCamera() {
+        _setState(State.OPENING);
+        long openStart = SystemClock.elapsedRealtime();
+        try {
+            if (Build.VERSION.SDK_INT >= 9) mCamera = Camera.open(mCameraIndex);
+            else mCamera = Camera.open();
+            if (mCamera == null) throw new RuntimeException("no camera " + mCameraIndex);
+        } catch (RuntimeException e) {
+            // the camera is used by another application or there is no such camera
+            e.printStackTrace();
+            mCamera = null;
+            mDoingPreview = false;
+            _setState(State.CLOSED);
+            _notifyError(e);
+            return -1;
+        }
+        mDevice = new AndroidCameraDevice(mCamera);
+        mOpenCount++;
+        long configureStart = SystemClock.elapsedRealtime();
+        mLastOpenTimeMs = configureStart - openStart;
+        Telemetry.getDefault().record(Telemetry.Metric.CAMERA_OPEN_MS, mLastOpenTimeMs);
+
+        String configKey = _getCameraConfigKey();
+        if (!_initCameraFromCache(configKey)) {
+            _initCamcorderProfile(); // firstly
+            _initCamera();           // then
+            _storeCameraConfig(configKey);
+        }
+        if (_attachPreviewBuffers()) mPreviewBufferRing.expectFirstFrame(mFirstFrameRunnable);
+        else mCamera.setOneShotPreviewCallback(mFirstFrameCallback);
+        return configureStart;
+    }
+
+    /**
+     * The camera is opened as a retained one, the surface only starts the preview
+     */
+    private void _preopen(long timeoutMs) {
+        if (!mDoingPreview || mCamera != null) return;
+        if (mReadySurfaceHolder != null) {
+            _sync();
             return;
         }
+        long configureStart = _openCamera();
+        if (configureStart < 0) return;
+        mLastConfigureTimeMs = SystemClock.elapsedRealtime() - configureStart;
+        Telemetry.getDefault().record(Telemetry.Metric.CONFIGURE_MS, mLastConfigureTimeMs);
+        _detachSurface(timeoutMs);
+    }
 
-        if (Build.VERSION.SDK_INT >= 9) mCamera = Camera.open(mCameraIndex);
-        else mCamera = Camera.open();
+    private void _onFirstPreviewFrame() {
+        mLastColdStartTimeMs = SystemClock.elapsedRealtime() - mStartPreviewRequestMs;
+        Telemetry.getDefault().record(Telemetry.Metric.COLD_START_MS, mLastColdStartTimeMs);
+        _notifyFirstPreviewFrame(mLastColdStartTimeMs);
+    }
 
-        _initCamcorderProfile(); // firstly
-        _initCamera();           // then
+    private void _detachSurface(long gracePeriodMs) {
+        if (mCamera == null) return;
+        mSurfaceDetached = true;
+        // the camera belongs to the recorder while recording, it goes on
+        if (mRecorder == null) {
+            mCamera.stopPreview();
+            try {
+                mCamera.setPreviewDisplay(null);
+            } catch (IOException e) {
+                e.printStackTrace();
+                Telemetry.getDefault().error("SimpleCamera.detachSurface", e);
+            }
+        }
+        mCameraHandler.removeCallbacks(mGraceReleaseRunnable);
+        mCameraHandler.postDelayed(mGraceReleaseRunnable, gracePeriodMs);
+        _updateState();
+    }
 
+    private void _reattachSurface() {
+        mCameraHandler.removeCallbacks(mGraceReleaseRunnable);
+        mSurfaceDetached = false;
+        if (mReadySurfaceHolder == null) return;
+        if (mRecorder != null) {
+            // the camera is unlocked, _stopRecording() will do it
+            mPreviewDisplayStale = true;
+            return;
+        }
         try {
             mCamera.setPreviewDisplay(mReadySurfaceHolder);
             mCamera.startPreview();
-        } catch (IOException e) {
+        } catch (Exception e) {
             e.printStackTrace();
+            _notifyError(e);
+            return;
         }
+        mLastReattachTimeMs = SystemClock.elapsedRealtime() - mSurfaceReadyMs;
+        mReattachCount++;
     }
 
     private void _stopPreview() {
+        if (mCameraHandler != null) mCameraHandler.removeCallbacks(mGraceReleaseRunnable);
+        mSurfaceDetached = false;
+        mPreviewDisplayStale = false;
         if (mCamera == null) return;
+        _setState(State.CLOSING);
+        cancelBurst();
+        if (mTimeLapseShooter != null) mTimeLapseShooter.abort();
+        _detachPreviewBuffers();
         mCamera.stopPreview();
         mCamera.release();
         mCamera = null;
+        mDevice = null;
+        mCloseCount++;
+        _setState(State.CLOSED);
     }
 
     private void _initCamera() {
@@ -279,13 +1382,20 @@ public class SimpleCamera {
                 // full screen with navigation bar stretches preview
                 // http://stackoverflow.com/questions/19577299/android-camera-preview-stretched
                 List<Camera.Size> listPreview = parameters.getSupportedPreviewSizes();
-                // width should be less than height
-//                int w = mSurfaceView.getMeasuredWidth();
-//                int h = mSurfaceView.getMeasuredHeight();
-//                if (w < h) { int t = w; w = h; h = t; }
-//                sizePreview = _getOptimalPreviewSize(listPreview, w, h);
+                // the preview should not be bigger than the preferred one while recording
+                Camera.Size preferred = parameters.getPreferredPreviewSizeForVideo();
+                int maxWidth = mMaxPreviewWidth;
+                int maxHeight = mMaxPreviewHeight;
+                if (preferred != null) {
+                    // both in landscape
+                    maxWidth = Math.min(Math.max(maxWidth, maxHeight),
+                            Math.max(preferred.width, preferred.height));
+                    maxHeight = Math.min(Math.min(mMaxPreviewWidth, mMaxPreviewHeight),
+                            Math.min(preferred.width, preferred.height));
+                }
+                sizePreview = _selectPreviewSize(listPreview, maxWidth, maxHeight, mVideoSize);
                 if (sizePreview == null) {
-                    sizePreview = parameters.getPreferredPreviewSizeForVideo();
+                    sizePreview = preferred;
                 }
                 // the last try for this situation
                 if (sizePreview == null) {
@@ -310,6 +1420,13 @@ public class SimpleCamera {
             }
         }
         // THE last try
+        if (sizePreview == null && mCamcorderProfile != null) {
+            sizePreview = _selectPreviewSize(parameters.getSupportedPreviewSizes(),
+                    Math.min(mMaxPreviewWidth, mMaxVideoWidth),
+                    Math.min(mMaxPreviewHeight, mMaxVideoHeight),
+                    mCamera.new Size(mCamcorderProfile.videoFrameWidth,
+                            mCamcorderProfile.videoFrameHeight));
+        }
         if (sizePreview == null) {
             sizePreview = _getBestSize(
                     Math.min(mMaxPreviewWidth, mMaxVideoWidth),
@@ -317,20 +1434,11 @@ public class SimpleCamera {
                     parameters.getSupportedPreviewSizes());
         }
 
-        if (sizePreview != null) {
-            parameters.setPreviewSize(sizePreview.width, sizePreview.height);
-            if (mRotationAngle == 90 || mRotationAngle == 270)
-                mPreviewSize = mCamera.new Size(sizePreview.height, sizePreview.width);
-            else mPreviewSize = sizePreview;
-        }
-
         Camera.Size sizePicture = _getBestSize(
                 mMaxPictureWidth, mMaxPictureHeight,
                 parameters.getSupportedPictureSizes());
-        if (sizePicture != null) parameters.setPictureSize(
-                sizePicture.width, sizePicture.height);
-        mPictureSize = sizePicture;
 
+        String focusMode = null;
         List<String> focusModes = parameters.getSupportedFocusModes();
         if (focusModes != null) {
 //            mCallVideoAutoFocus = false;
@@ -338,55 +1446,187 @@ public class SimpleCamera {
             mCallVideoAutoFocus = true;
             mCallPictureAutoFocus = true;
             if (focusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO))
-                parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
+                focusMode = Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO;
             else if (focusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE))
-                parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+                focusMode = Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE;
             else if (focusModes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
-                parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
+                focusMode = Camera.Parameters.FOCUS_MODE_AUTO;
                 mCallVideoAutoFocus = true;
                 mCallPictureAutoFocus = true;
             }
         }
 
+        _applyParameters(parameters, sizePreview, sizePicture, focusMode);
+    }
+
+    private void _applyParameters(Camera.Parameters parameters, Camera.Size sizePreview,
+                                  Camera.Size sizePicture, String focusMode) {
+        mPreviewFrameSize = sizePreview;
+        mPreviewSizeDecision = null;
+        if (sizePreview != null) {
+            SizeSelector selector = mPreviewSizeSelector;
+            if (selector != null) mPreviewSizeDecision = selector.evaluate(
+                    sizePreview.width, sizePreview.height,
+                    _getPreviewSizeRequest(mMaxPreviewWidth, mMaxPreviewHeight, _getStreamSize()));
+            parameters.setPreviewSize(sizePreview.width, sizePreview.height);
+            if (mRotationAngle == 90 || mRotationAngle == 270)
+                mPreviewSize = mCamera.new Size(sizePreview.height, sizePreview.width);
+            else mPreviewSize = sizePreview;
+        }
+
+        mNegotiatedPictureSize = sizePicture;
+        if (sizePicture != null) {
+            sizePicture = _governPictureSize(parameters.getSupportedPictureSizes(), sizePicture);
+            parameters.setPictureSize(sizePicture.width, sizePicture.height);
+        }
+        mPictureSize = sizePicture;
+
+        mFocusMode = focusMode;
+        if (focusMode != null) parameters.setFocusMode(focusMode);
+
         parameters.setRotation(mRotationAngle);
         parameters.setPictureFormat(ImageFormat.JPEG);
+        parameters.setPreviewFormat(ImageFormat.NV21);
         mCamera.setParameters(parameters);
         mCamera.setDisplayOrientation(mRotationAngle);
     }
 
-    // taken from
-    // http://stackoverflow.com/questions/19577299/android-camera-preview-stretched
-    private Camera.Size _getOptimalPreviewSize(List<Camera.Size> sizes, int w, int h) {
-
-        final double ASPECT_TOLERANCE = 0.1;
-        double targetRatio = (double)h / w;
-
-        if (sizes == null) return null;
+    /**
+     * Known good configuration is applied with one setParameters() call,
+     * CamcorderProfile probing and supported lists walking are skipped
+     *
+     * @return false if there is nothing in the cache or the configuration is not accepted
+     */
+    private boolean _initCameraFromCache(String key) {
+        CameraConfigCache cache = mConfigCache;
+        if (cache == null) return false;
+        CameraConfigCache.Entry entry = cache.get(key);
+        if (entry == null) return false;
+        try {
+            mCamcorderQuality = entry.mProfileQuality;
+            mCamcorderProfile = entry.mProfileQuality < 0 ? null :
+                    CamcorderProfile.get(mCameraIndex, entry.mProfileQuality);
+            mVideoSize = entry.mVideoWidth <= 0 ? null :
+                    mCamera.new Size(entry.mVideoWidth, entry.mVideoHeight);
+            mCallVideoAutoFocus = entry.mCallVideoAutoFocus;
+            mCallPictureAutoFocus = entry.mCallPictureAutoFocus;
+            _applyParameters(mCamera.getParameters(),
+                    entry.mPreviewWidth <= 0 ? null :
+                            mCamera.new Size(entry.mPreviewWidth, entry.mPreviewHeight),
+                    entry.mPictureWidth <= 0 ? null :
+                            mCamera.new Size(entry.mPictureWidth, entry.mPictureHeight),
+                    entry.mFocusMode);
+            return true;
+        } catch (RuntimeException e) {
+            // the camera has changed its mind, full negotiation
+            e.printStackTrace();
+            Telemetry.getDefault().error("SimpleCamera.initCameraFromCache", e);
+            cache.remove(key);
+            return false;
+        }
+    }
 
-        Camera.Size optimalSize = null;
-        double minDiff = Double.MAX_VALUE;
+    private void _storeCameraConfig(String key) {
+        CameraConfigCache cache = mConfigCache;
+        if (cache == null) return;
+        CameraConfigCache.Entry entry = new CameraConfigCache.Entry();
+        if (mPreviewFrameSize != null) {
+            entry.mPreviewWidth = mPreviewFrameSize.width;
+            entry.mPreviewHeight = mPreviewFrameSize.height;
+        }
+        if (mVideoSize != null) {
+            entry.mVideoWidth = mVideoSize.width;
+            entry.mVideoHeight = mVideoSize.height;
+        }
+        if (mNegotiatedPictureSize != null) {
+            entry.mPictureWidth = mNegotiatedPictureSize.width;
+            entry.mPictureHeight = mNegotiatedPictureSize.height;
+        }
+        entry.mProfileQuality = mCamcorderProfile == null ? -1 : mCamcorderQuality;
+        entry.mFocusMode = mFocusMode;
+        entry.mCallVideoAutoFocus = mCallVideoAutoFocus;
+        entry.mCallPictureAutoFocus = mCallPictureAutoFocus;
+        cache.put(key, entry);
+    }
 
-        int targetHeight = h;
+    /**
+     * everything the negotiation depends on
+     */
+    private String _getCameraConfigKey() {
+        int[] surface = _getSurfaceSize();
+        return mCameraIndex + ":" + mRotationAngle +
+                ":" + surface[0] + "x" + surface[1] +
+                ":" + (mPreviewSizeSelector == null ? "-" : mPreviewSizeSelector.getClass().getName()) +
+                ":" + mMaxPreviewPixelsPerSecond +
+                ":" + mMaxPreviewWidth + "x" + mMaxPreviewHeight +
+                ":" + mMaxVideoWidth + "x" + mMaxVideoHeight +
+                ":" + mMaxPictureWidth + "x" + mMaxPictureHeight;
+    }
 
+    /**
+     * @param stream its aspect must be kept, null - any
+     * @return null if there is no selector or nothing fits
+     */
+    private Camera.Size _selectPreviewSize(List<Camera.Size> sizes, int maxWidth, int maxHeight,
+                                           Camera.Size stream) {
+        SizeSelector selector = mPreviewSizeSelector;
+        if (selector == null || sizes == null || sizes.isEmpty()) return null;
+        int[] widths = new int[sizes.size()];
+        int[] heights = new int[sizes.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = sizes.get(i).width;
+            heights[i] = sizes.get(i).height;
+        }
+        SizeSelector.Decision decision = selector.select(widths, heights,
+                _getPreviewSizeRequest(maxWidth, maxHeight, stream));
+        if (decision == null) return null;
         for (Camera.Size size : sizes) {
-            double ratio = (double) size.width / size.height;
-            if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE) continue;
-            if (Math.abs(size.height - targetHeight) < minDiff) {
-                optimalSize = size;
-                minDiff = Math.abs(size.height - targetHeight);
-            }
+            if (size.width == decision.width && size.height == decision.height) return size;
         }
+        return null;
+    }
 
-        if (optimalSize == null) {
-            minDiff = Double.MAX_VALUE;
-            for (Camera.Size size : sizes) {
-                if (Math.abs(size.height - targetHeight) < minDiff) {
-                    optimalSize = size;
-                    minDiff = Math.abs(size.height - targetHeight);
-                }
-            }
+    private SizeSelector.Request _getPreviewSizeRequest(int maxWidth, int maxHeight,
+                                                        Camera.Size stream) {
+        SizeSelector.Request request = new SizeSelector.Request();
+        int[] surface = _getSurfaceSize();
+        request.surfaceWidth = surface[0];
+        request.surfaceHeight = surface[1];
+        request.maxWidth = maxWidth;
+        request.maxHeight = maxHeight;
+        if (stream != null) {
+            request.streamWidth = stream.width;
+            request.streamHeight = stream.height;
+        }
+        if (mCamcorderProfile != null && mCamcorderProfile.videoFrameRate > 0)
+            request.fps = mCamcorderProfile.videoFrameRate;
+        request.maxPixelsPerSecond = mMaxPreviewPixelsPerSecond;
+        return request;
+    }
+
+    /**
+     * recorded stream whose aspect the preview should keep
+     */
+    private Camera.Size _getStreamSize() {
+        if (mVideoSize != null) return mVideoSize;
+        if (mCamcorderProfile != null) return mCamera.new Size(
+                mCamcorderProfile.videoFrameWidth, mCamcorderProfile.videoFrameHeight);
+        return null;
+    }
+
+    /**
+     * surfaceChanged() may come after surfaceCreated() started the camera,
+     * the laid out view is known then
+     */
+    private int[] _getSurfaceSize() {
+        int width = mSurfaceWidth;
+        int height = mSurfaceHeight;
+        SurfaceView view = mSurfaceView;
+        if ((width <= 0 || height <= 0) && view != null) {
+            width = view.getWidth();
+            height = view.getHeight();
         }
-        return optimalSize;
+        return new int[]{width, height};
     }
 
     /**
@@ -397,27 +1637,31 @@ public class SimpleCamera {
         // !!! see _initCamera() - if a device does not support two streams for preview and video
         //   then the size of the encoded video MUST correspond with preview size
         //   otherwise we risk of getting a native crash
+        mCamcorderProfile = null;
+        mCamcorderQuality = -1;
         if (Build.VERSION.SDK_INT >= 11) {
             if (CamcorderProfile.hasProfile(mCameraIndex, CamcorderProfile.QUALITY_HIGH))
-                mCamcorderProfile = CamcorderProfile.get(mCameraIndex, CamcorderProfile.QUALITY_HIGH);
+                mCamcorderQuality = CamcorderProfile.QUALITY_HIGH;
             else if (CamcorderProfile.hasProfile(mCameraIndex, CamcorderProfile.QUALITY_1080P))
-                mCamcorderProfile = CamcorderProfile.get(mCameraIndex, CamcorderProfile.QUALITY_1080P);
+                mCamcorderQuality = CamcorderProfile.QUALITY_1080P;
             else if (CamcorderProfile.hasProfile(mCameraIndex, CamcorderProfile.QUALITY_720P))
-                mCamcorderProfile = CamcorderProfile.get(mCameraIndex, CamcorderProfile.QUALITY_720P);
+                mCamcorderQuality = CamcorderProfile.QUALITY_720P;
             else if (CamcorderProfile.hasProfile(mCameraIndex, CamcorderProfile.QUALITY_480P))
-                mCamcorderProfile = CamcorderProfile.get(mCameraIndex, CamcorderProfile.QUALITY_480P);
+                mCamcorderQuality = CamcorderProfile.QUALITY_480P;
             else if (CamcorderProfile.hasProfile(mCameraIndex, CamcorderProfile.QUALITY_QVGA))
-                mCamcorderProfile = CamcorderProfile.get(mCameraIndex, CamcorderProfile.QUALITY_QVGA);
+                mCamcorderQuality = CamcorderProfile.QUALITY_QVGA;
+            if (mCamcorderQuality >= 0)
+                mCamcorderProfile = CamcorderProfile.get(mCameraIndex, mCamcorderQuality);
         }
     }
 
     private Camera.Size _getBestSize(int width, int height, List<Camera.Size> listSizes) {
         Camera.Size result = null;
-        long area = width * height;
+        long area = (long) width * height;
         long minArea = Long.MAX_VALUE;
         Camera.Size minSize = null;
         for (Camera.Size size : listSizes) {
-            long newArea = size.width * size.height;
+            long newArea = (long) size.width * size.height;
             if (newArea < minArea) {
                 minArea = newArea;
                 minSize = size;
@@ -426,7 +1670,7 @@ public class SimpleCamera {
                 if (result == null) {
                     result = size;
                 } else {
-                    long resultArea = result.width * result.height;
+                    long resultArea = (long) result.width * result.height;
                     if (newArea > resultArea) {
                         result = size;
                     }
@@ -437,14 +1681,252 @@ public class SimpleCamera {
         return result;
     }
 
+    /////////////  PREVIEW FRAMES  //////////////
+
+    /**
+     * @param listener    null - stop receiving frames
+     * @param bufferCount buffers in the ring, the listener may hold bufferCount - 1 frames at once
+     */
+    public void setPreviewFrameListener(PreviewFrameListener listener, int bufferCount) {
+        if (bufferCount < 2)
+            throw new IllegalArgumentException("bufferCount must be at least 2");
+        mPreviewBufferCount = bufferCount;
+        mPreviewFrameListener = listener;
+        _runOnCameraThread(mAttachBuffersRunnable);
+    }
+
+    public void setPreviewFrameListener(PreviewFrameListener listener) {
+        setPreviewFrameListener(listener, mPreviewBufferCount);
+    }
+
+    public int getPreviewBuffersInFlight() {
+        return mPreviewBufferRing == null ? 0 : mPreviewBufferRing.getInFlightCount();
+    }
+
+    public long getDeliveredPreviewFrames() {
+        return mPreviewBufferRing == null ? 0 : mPreviewBufferRing.getDeliveredCount();
+    }
+
+    public long getDroppedPreviewFrames() {
+        return mPreviewBufferRing == null ? 0 : mPreviewBufferRing.getDroppedCount();
+    }
+
+    /**
+     * @return false if no buffers are needed
+     */
+    private boolean _attachPreviewBuffers() {
+        if (mCamera == null) return false;
+        if ((mPreviewFrameListener == null && mZslDepth == 0 && mMotionDetector == null) ||
+                mPreviewFrameSize == null) {
+            _detachPreviewBuffers();
+            mZslBuffer = null;
+            return false;
+        }
+        int width = mPreviewFrameSize.width;
+        int height = mPreviewFrameSize.height;
+        // the buffers survive camera restarts if the size is the same
+        if (mPreviewBufferRing == null ||
+                !mPreviewBufferRing.fits(mPreviewBufferCount, width, height)) {
+            _detachPreviewBuffers();
+            mPreviewBufferRing = new PreviewBufferRing(mPreviewBufferCount, width, height);
+        }
+        if (mZslDepth == 0) {
+            mZslBuffer = null;
+        } else if (mZslBuffer == null || !mZslBuffer.fits(mZslDepth, width, height)) {
+            mZslBuffer = new ZslBuffer(mZslDepth, width, height,
+                    mPreviewBufferRing.getFrameSize());
+        } else {
+            mZslBuffer.clear();
+        }
+        // a new camera session, the old background is useless
+        MotionDetector detector = mMotionDetector;
+        if (detector != null) detector.reset();
+        mPreviewBufferRing.setListener(mPreviewDispatcher);
+        mPreviewBufferRing.attach(mDevice);
+        return true;
+    }
+
+    private void _detachPreviewBuffers() {
+        if (mPreviewBufferRing == null) return;
+        mPreviewBufferRing.detach();
+    }
+
+    //////////////  MOTION  /////////////////
+
+    /**
+     * Preview frames are checked for motion on the camera thread
+     *
+     * @param detector null - no detection
+     */
+    public void setMotionDetector(MotionDetector detector) {
+        mMotionDetector = detector;
+        _runOnCameraThread(mAttachBuffersRunnable);
+    }
+
+    public MotionDetector getMotionDetector() {
+        return mMotionDetector;
+    }
+
+    public void setMotionListener(MotionListener listener) {
+        mMotionListener = listener;
+    }
+
+    /**
+     * Recording follows the motion detector, see setOutputVideoFile()
+     *
+     * @param preRollSegments 0 - recording starts when motion is detected.
+     *                        Otherwise the camera records all the time in segments,
+     *                        only the last preRollSegments are kept while there is no motion
+     *                        and they open the next event. Needs setSegmentedRecording()
+     */
+    public void setMotionRecording(final boolean enabled, final int preRollSegments) {
+        if (preRollSegments < 0) throw new IllegalArgumentException("preRollSegments must not be negative");
+        if (enabled && preRollSegments > 0 && !_isSegmented())
+            throw new IllegalStateException("pre-roll needs setSegmentedRecording()");
+        _runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                boolean wasRecording = mMotionRecording && (mMotionPreRollSegments > 0 || mMotionEvent);
+                mMotionRecording = enabled;
+                mMotionPreRollSegments = enabled ? preRollSegments : 0;
+                if (enabled && (preRollSegments > 0 || mMotionEvent)) {
+                    if (mSegmentRing != null && mRecorder != null)
+                        mSegmentRing.setKeepLast(_getSegmentKeepLast());
+                    startRecording();
+                } else if (wasRecording) {
+                    stopRecording();
+                }
+            }
+        });
+    }
+
+    /**
+     * Camera thread, in the middle of the frame dispatch
+     */
+    private void _detectMotion(MotionDetector detector, PreviewFrame frame) {
+        boolean motion = detector.process(frame.mData, frame.mWidth, frame.mHeight, frame.mTimestampNs);
+        if (motion == mMotionEvent) return;
+        mMotionEvent = motion;
+        final boolean started = motion;
+        final float level = detector.getLevel();
+        // the recorder is not touched from inside the preview callback,
+        // every transition is handled even if the next one is already seen
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (started) _onMotionStarted(level);
+                else _onMotionStopped();
+            }
+        });
+    }
+
+    private void _onMotionStarted(float level) {
+        if (mMotionRecording) {
+            if (mMotionPreRollSegments == 0) startRecording();
+            else if (mSegmentRing != null) mSegmentRing.setKeepLast(0);
+        }
+        _notifyMotionStarted(level);
+    }
+
+    private void _onMotionStopped() {
+        List<File> files = Collections.emptyList();
+        if (mMotionRecording && mMotionPreRollSegments > 0) {
+            if (mSegmentRing != null) {
+                // the segment being recorded belongs to the event
+                _rotateSegment();
+                files = mSegmentRing.takeFinished();
+                mSegmentRing.setKeepLast(mMotionPreRollSegments);
+            }
+        } else if (mMotionRecording && mDoingRecord) {
+            // on the camera thread it is stopped right away
+            stopRecording();
+            if (_isSegmented() && mSegmentRing != null) files = mSegmentRing.getFinishedFiles();
+            else if (mOutputVideoFile != null) files = Collections.singletonList(mOutputVideoFile);
+        }
+        _notifyMotionStopped(files);
+    }
+
+    private int _getSegmentKeepLast() {
+        if (mMotionRecording && mMotionPreRollSegments > 0)
+            return mMotionEvent ? 0 : mMotionPreRollSegments;
+        return mSegmentKeepLast;
+    }
+
+    private void _notifyMotionStarted(final float level) {
+        final MotionListener listener = mMotionListener;
+        if (listener == null) return;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onMotionStarted(level);
+            }
+        });
+    }
+
+    private void _notifyMotionStopped(List<File> files) {
+        final MotionListener listener = mMotionListener;
+        if (listener == null) return;
+        final List<File> copy = new ArrayList<File>(files);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onMotionStopped(copy);
+            }
+        });
+    }
+
     //////////////  SHOOTING  /////////////////
 
+    /**
+     * Captured pictures are written and decoded by this processor.
+     * The default one has a single worker, rejects pictures while its queue is full
+     * and delivers results on the thread which has created SimpleCamera.
+     *
+     * @param postProcessor may be shared between several SimpleCamera
+     */
+    public void setPostProcessor(PostProcessor postProcessor) {
+        mPostProcessor = postProcessor;
+    }
+
+    public PostProcessor getPostProcessor() {
+        return _getPostProcessor();
+    }
+
+    private PostProcessor _getPostProcessor() {
+        if (mPostProcessor == null) {
+            mPostProcessor = new PostProcessor();
+            mPostProcessor.setResultHandler(mHandler);
+        }
+        return mPostProcessor;
+    }
+
+    /**
+     * Zero shutter lag: the last preview frames are kept and the one nearest
+     * to the takePicture() call is encoded to JPEG on the post processor.
+     * The preview is never stopped and recording goes on.
+     * The picture has the preview resolution.
+     *
+     * @param depth how many frames to keep, 0 - turn off
+     */
+    public void setZeroShutterLag(int depth) {
+        if (depth < 0)
+            throw new IllegalArgumentException("depth must not be negative");
+        mZslDepth = depth;
+        _runOnCameraThread(mAttachBuffersRunnable);
+    }
+
+    public boolean isZeroShutterLag() {
+        return mZslDepth > 0;
+    }
+
     public void setOutputImageFile(File file) {
         mOutputImageFile = file;
     }
 
     /**
-     * Immediately stops recording!
+     * Immediately stops recording unless zero shutter lag is on!
+     * JPEG is written to the file exactly as the camera has encoded it,
+     * no Bitmap is created.
      */
     public void takePicture(File file) {
         setOutputImageFile(file);
@@ -452,51 +1934,200 @@ public class SimpleCamera {
     }
 
     /**
-     * Immediately stops recording!
+     * Immediately stops recording unless zero shutter lag is on!
+     * If the output image file is set, JPEG is written to it as is,
+     * the Bitmap is decoded only for the callback.
      *
      * @param callback
      */
     public void takePicture(final BitmapCreatedCallback callback) {
-        BitmapCreatedCallback callbackWrapper = callback;
-        final File outputFile = mOutputImageFile;
-        if (outputFile != null && !outputFile.exists()) {
-            callbackWrapper = new BitmapCreatedCallback() {
-                BitmapCreatedCallback outsideCallback = callback;
+        _takePicture(callback, DecodeLimit.NONE);
+    }
 
-                @Override
-                public void done(Bitmap bmp) {
-                    if (bmp != null) {
-                        FileOutputStream out = null;
-                        try {
-                            out = new FileOutputStream(outputFile);
-                            bmp.compress(Bitmap.CompressFormat.JPEG, 100, out);
-                            out.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                            if (out != null) try {
-                                out.close();
-                            } catch (Exception ex) {
-                            }
-                        }
-                    }
-                    if (outsideCallback != null)
-                        outsideCallback.done(bmp);
-                }
-            };
-        }
-        _startTakingPicture(callbackWrapper);
+    /**
+     * The same as takePicture(callback) but the Bitmap fits maxWidth x maxHeight,
+     * it is decoded subsampled so the full size Bitmap is never created.
+     * The file still gets the full JPEG.
+     */
+    public void takePicture(BitmapCreatedCallback callback, int maxWidth, int maxHeight) {
+        _takePicture(callback, DecodeLimit.size(maxWidth, maxHeight));
     }
 
-    private void _startTakingPicture(final BitmapCreatedCallback callback) {
-        if (callback == null) return;
+    /**
+     * The same as takePicture(callback) but the Bitmap has not more than maxPixels
+     */
+    public void takePicture(BitmapCreatedCallback callback, long maxPixels) {
+        _takePicture(callback, DecodeLimit.pixels(maxPixels));
+    }
+
+    private void _takePicture(final BitmapCreatedCallback callback, final DecodeLimit limit) {
+        File file = mOutputImageFile;
+        if (file != null && file.exists()) file = null;
+        final File outputFile = file;
+        _runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                _startTakingPicture(outputFile, callback, limit);
+            }
+        });
+    }
+
+    private void _startTakingPicture(File outputFile, BitmapCreatedCallback callback,
+                                     DecodeLimit limit) {
+        if (callback == null && outputFile == null) return;
         if (!mDoingPreview) return;
         if (mCamera == null) return;
+        if (_takeZslPicture(outputFile, callback, limit)) return;
         stopRecording();
-        if (mShooter != null) return;
-        mShooter = new Shooter(callback);
+        if (mShooter != null || mBurstShooter != null) return;
+        if (mTimeLapseShooter != null && mTimeLapseShooter.mTaking) return;
+        mShooter = new Shooter(outputFile, callback, limit);
         mShooter.take();
     }
 
+    /**
+     * Takes count pictures as fast as the camera allows but not more often than intervalMs.
+     * Focus is called once, JPEGs are not decoded and go to the sink through the post processor.
+     * Immediately stops recording!
+     *
+     * If the camera turns out to be busy, the sink gets cancelled stats without shots.
+     *
+     * @param intervalMs 0 - back to back
+     * @param sink       see BurstFileSink
+     * @return false if the preview is not started
+     */
+    public boolean takeBurst(final int count, final long intervalMs, final BurstSink sink) {
+        if (count <= 0)
+            throw new IllegalArgumentException("count must be positive");
+        if (intervalMs < 0)
+            throw new IllegalArgumentException("intervalMs must not be negative");
+        if (sink == null)
+            throw new IllegalArgumentException("sink must not be null");
+        if (!mDoingPreview) return false;
+        _runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mCamera == null || mShooter != null || mBurstShooter != null ||
+                        mTimeLapseShooter != null) {
+                    BurstStats stats = new BurstStats(count);
+                    stats.mCancelled = true;
+                    _notifyBurstDone(sink, stats);
+                    return;
+                }
+                stopRecording();
+                BurstShooter shooter = new BurstShooter(count, intervalMs, sink,
+                        _getPostProcessor(), mBurstHost);
+                mBurstShooter = shooter;
+                shooter.take();
+            }
+        });
+        return true;
+    }
+
+    public void cancelBurst() {
+        _runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mBurstShooter != null) mBurstShooter.cancel();
+            }
+        });
+    }
+
+    public boolean isTakingBurst() {
+        return mBurstShooter != null;
+    }
+
+    /**
+     * Takes a picture every intervalMs of SystemClock.elapsedRealtime() into
+     * dir/prefix_00000.jpg, dir/prefix_00001.jpg ... Focus, exposure and white balance
+     * are locked once for the whole time lapse. takePicture() may still be called
+     * between the shots (its autofocus may move the focus), a slot meanwhile waits for it.
+     * Immediately stops recording!
+     * <p/>
+     * The schedule follows the slots in deep sleep as well, but the shots do not:
+     * keep a wake lock for an unattended time lapse.
+     * If the camera turns out to be busy, the listener gets cancelled stats without shots.
+     *
+     * @param count    slots to shoot, 0 - till stopTimeLapse()
+     * @param overrun  what to do with slots a shot has overrun
+     * @param listener may be null
+     * @return false if the preview is not started
+     */
+    public boolean startTimeLapse(final long intervalMs, final int count, final Overrun overrun,
+                                  final File dir, final String prefix,
+                                  final TimeLapseListener listener) {
+        if (intervalMs <= 0)
+            throw new IllegalArgumentException("intervalMs must be positive");
+        if (count < 0)
+            throw new IllegalArgumentException("count must not be negative");
+        if (overrun == null || dir == null || prefix == null)
+            throw new IllegalArgumentException("overrun, dir and prefix must not be null");
+        if (!mDoingPreview) return false;
+        _runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mCamera == null || mShooter != null || mBurstShooter != null ||
+                        mTimeLapseShooter != null) {
+                    TimeLapseStats stats = new TimeLapseStats(intervalMs);
+                    stats.mCancelled = true;
+                    _notifyTimeLapseDone(listener, stats);
+                    return;
+                }
+                stopRecording();
+                mTimeLapseShooter = new TimeLapseShooter(intervalMs, count, overrun,
+                        dir, prefix, listener);
+                mTimeLapseShooter.start();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * The picture being taken is still written, then the listener gets the stats
+     */
+    public void stopTimeLapse() {
+        _runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mTimeLapseShooter != null) mTimeLapseShooter.cancel();
+            }
+        });
+    }
+
+    public boolean isTimeLapseRunning() {
+        return mTimeLapseShooter != null;
+    }
+
+    /**
+     * Live stats of the running time lapse, null if there is none
+     */
+    public TimeLapseStats getTimeLapseStats() {
+        TimeLapseShooter shooter = mTimeLapseShooter;
+        return shooter == null ? null : shooter.mStats;
+    }
+
+    /**
+     * @return false if there is no frame and the usual way must be used
+     */
+    private boolean _takeZslPicture(File outputFile, BitmapCreatedCallback callback,
+                                    DecodeLimit limit) {
+        ZslBuffer zsl = mZslBuffer;
+        if (zsl == null) return false;
+        long shutterNs = System.nanoTime();
+        // pooled, the post processor gives it back once encoded
+        byte[] frame = zsl.takeNearest(shutterNs);
+        if (frame == null) {
+            // many devices do not deliver preview frames while recording,
+            //  do not kill the recording for the usual picture
+            if (!mDoingRecord) return false;
+            _notifyPictureFailed(callback);
+            return true;
+        }
+        _getPostProcessor().processNv21(frame, zsl.getWidth(), zsl.getHeight(),
+                mRotationAngle, outputFile, callback, limit, zsl);
+        return true;
+    }
+
     private void _stopTakingPicture() {
         mShooter = null;
         if (!mDoingPreview) return;
@@ -505,6 +2136,7 @@ public class SimpleCamera {
             mCamera.startPreview();
         } catch (Exception e) {
             e.printStackTrace();
+            Telemetry.getDefault().error("SimpleCamera.takePicture", e);
         }
     }
 
@@ -521,85 +2153,124 @@ public class SimpleCamera {
             return;
         if (mDoingRecord) return;
         mDoingRecord = true;
-        _startRecording();
+        _requestSync();
     }
 
     public void stopRecording() {
         if (!mDoingRecord) return;
         mDoingRecord = false;
-        _stopRecording();
+        _requestSync();
     }
 
     public boolean isRecording() {
         return mDoingRecord;
     }
 
+    /**
+     * Split recordings into files named after setOutputVideoFile(): video_0000.mp4, video_0001.mp4 ...
+     * On Android 8+ size limited segments follow each other without a gap,
+     * otherwise the recorder is restarted without reconnecting the camera.
+     *
+     * @param segmentDurationMs 0 - no time limit
+     * @param segmentMaxBytes   0 - no size limit, both 0 - one file as usual
+     * @param keepLast          0 - keep all segments, otherwise only the last ones are kept (dashcam)
+     */
+    public void setSegmentedRecording(long segmentDurationMs, long segmentMaxBytes, int keepLast) {
+        if (segmentDurationMs < 0 || segmentMaxBytes < 0 || keepLast < 0)
+            throw new IllegalArgumentException("arguments must not be negative");
+        mSegmentDurationMs = segmentDurationMs;
+        mSegmentMaxBytes = segmentMaxBytes;
+        mSegmentKeepLast = keepLast;
+    }
+
+    public void setSegmentListener(SegmentListener listener) {
+        mSegmentListener = listener;
+    }
+
+    /**
+     * @return -1 if there has been no switch between segments
+     */
+    public long getLastSegmentGapMs() {
+        return mLastSegmentGapMs;
+    }
+
+    public long getMaxSegmentGapMs() {
+        return mMaxSegmentGapMs;
+    }
+
+    private boolean _isSegmented() {
+        return mSegmentDurationMs > 0 || mSegmentMaxBytes > 0;
+    }
+
+    private final Runnable mRotateSegmentRunnable = new Runnable() {
+        @Override
+        public void run() {
+            _rotateSegment();
+        }
+    };
+
+    private final MediaRecorder.OnInfoListener mSegmentInfoListener =
+            new MediaRecorder.OnInfoListener() {
+                @Override
+                public void onInfo(MediaRecorder mr, int what, int extra) {
+                    // comes on the camera thread, the recorder has been created there
+                    if (mr != mRecorder) return;
+                    if (what == MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED) {
+                        SegmentRing.Segment finished = mSegment;
+                        mSegment = mNextSegment;
+                        mNextSegment = null;
+                        _onSegmentStarted(0);
+                        if (finished != null) _finishSegment(finished);
+                    } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
+                        // no next file, the recorder has stopped
+                        _rotateSegment();
+                    }
+                }
+            };
+
     private void _startRecording() {
         if (mCamera == null) return;
         if (mRecorder != null) _stopRecording();
         if (!mDoingRecord) return;
         if (!mDoingPreview) return;
-        if (mReadySurfaceHolder == null) {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    _startRecording();
-                }
-            });
-            return;
+        // _startPreview() will start it when the surface is ready
+        if (mReadySurfaceHolder == null) return;
+
+        File file = mOutputVideoFile;
+        if (_isSegmented()) {
+            mSegmentRing = new SegmentRing(mOutputVideoFile, _getSegmentKeepLast());
+            mSegment = mSegmentRing.allocate();
+            file = mSegment.mFile;
         }
-
         mRecorder = new MediaRecorder();
         mCamera.unlock();
         try {
-            mRecorder.setCamera(mCamera);
-            mRecorder.setAudioSource(MediaRecorder.AudioSource.CAMCORDER);
-            mRecorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
-
-            // THIS
-//            CamcorderProfile profile = CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH);
-//            mRecorder.setProfile(profile);
-            // OR THIS
-//            mRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-//            mRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.DEFAULT);
-//            mRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.DEFAULT);
-            // OR THIS
-            if (mCamcorderProfile != null) {
-                mRecorder.setProfile(mCamcorderProfile);
-            } else {
-                mRecorder.setOutputFormat(MediaRecorder.OutputFormat.DEFAULT);
-                mRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.DEFAULT);
-                mRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.DEFAULT);
-            }
-            // OR THIS
-//            CamcorderProfile profile = CamcorderProfile.get(CamcorderProfile.QUALITY_LOW);
-//            mRecorder.setProfile(profile);
-
-            mRecorder.setOutputFile(mOutputVideoFile.getAbsolutePath());
-            if (Build.VERSION.SDK_INT >= 9)
-                mRecorder.setOrientationHint(mRotationAngle);
-            if (mVideoSize != null)
-                mRecorder.setVideoSize(mVideoSize.width, mVideoSize.height);
-            mRecorder.setPreviewDisplay(mReadySurfaceHolder.getSurface());
-            mRecorder.prepare();
+            _prepareRecorder(file);
         } catch (Exception e) {
             e.printStackTrace();
+            Telemetry.getDefault().error("SimpleCamera.startRecording", e);
             mRecorder.release();
             mRecorder = null;
             mCamera.lock();
             mDoingRecord = false;
+            mSegment = null;
         }
 
         Camera.AutoFocusCallback focusCallback = new Camera.AutoFocusCallback() {
             @Override public void onAutoFocus(boolean success, Camera camera) {
-                if (!mDoingRecord) return;
-                mRecorder.start();
+                if (mFocusStartMs > 0) Telemetry.getDefault().record(Telemetry.Metric.AUTOFOCUS_MS,
+                        SystemClock.elapsedRealtime() - mFocusStartMs);
+                if (!mDoingRecord || mRecorder == null) return;
+                _startRecorder();
+                if (mSegment != null) _onSegmentStarted(0);
             }};
         if (mCallVideoAutoFocus) {
             try {
+                mFocusStartMs = SystemClock.elapsedRealtime();
                 mCamera.autoFocus(focusCallback);
             } catch (Exception e) {
                 mCallVideoAutoFocus = false;
+                mFocusStartMs = 0;
                 focusCallback.onAutoFocus(true, mCamera);
             }
         } else {
@@ -607,17 +2278,166 @@ public class SimpleCamera {
         }
     }
 
+    private void _startRecorder() {
+        long start = SystemClock.elapsedRealtime();
+        mRecorder.start();
+        Telemetry.getDefault().record(Telemetry.Metric.RECORDER_START_MS,
+                SystemClock.elapsedRealtime() - start);
+    }
+
+    private void _stopRecorder() {
+        long start = SystemClock.elapsedRealtime();
+        mRecorder.stop();
+        Telemetry.getDefault().record(Telemetry.Metric.RECORDER_STOP_MS,
+                SystemClock.elapsedRealtime() - start);
+    }
+
+    /**
+     * mRecorder is new or reset, the camera is unlocked
+     */
+    private void _prepareRecorder(File file) throws IOException {
+        mRecorder.setCamera(mCamera);
+        mRecorder.setAudioSource(MediaRecorder.AudioSource.CAMCORDER);
+        mRecorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
+
+        // THIS
+//        CamcorderProfile profile = CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH);
+//        mRecorder.setProfile(profile);
+        // OR THIS
+//        mRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+//        mRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.DEFAULT);
+//        mRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.DEFAULT);
+        // OR THIS
+        if (mCamcorderProfile != null) {
+            mRecorder.setProfile(mCamcorderProfile);
+        } else {
+            mRecorder.setOutputFormat(MediaRecorder.OutputFormat.DEFAULT);
+            mRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.DEFAULT);
+            mRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.DEFAULT);
+        }
+        // OR THIS
+//        CamcorderProfile profile = CamcorderProfile.get(CamcorderProfile.QUALITY_LOW);
+//        mRecorder.setProfile(profile);
+
+        mRecorder.setOutputFile(file.getAbsolutePath());
+        if (Build.VERSION.SDK_INT >= 9)
+            mRecorder.setOrientationHint(mRotationAngle);
+        if (mVideoSize != null)
+            mRecorder.setVideoSize(mVideoSize.width, mVideoSize.height);
+        // a retained camera may be recording without a surface
+        SurfaceHolder holder = mReadySurfaceHolder;
+        if (holder != null) mRecorder.setPreviewDisplay(holder.getSurface());
+        if (mSegmentMaxBytes > 0) mRecorder.setMaxFileSize(mSegmentMaxBytes);
+        mRecorder.setOnInfoListener(_isSegmented() ? mSegmentInfoListener : null);
+        long start = SystemClock.elapsedRealtime();
+        mRecorder.prepare();
+        Telemetry.getDefault().record(Telemetry.Metric.RECORDER_PREPARE_MS,
+                SystemClock.elapsedRealtime() - start);
+    }
+
+    /**
+     * mSegment has just started recording
+     */
+    private void _onSegmentStarted(long gapMs) {
+        if (Build.VERSION.SDK_INT >= 26 && mSegmentMaxBytes > 0) {
+            // the recorder switches to it by itself when the size limit is reached
+            SegmentRing.Segment next = mSegmentRing.allocate();
+            try {
+                mRecorder.setNextOutputFile(next.mFile);
+                mNextSegment = next;
+            } catch (Exception e) {
+                e.printStackTrace();
+                Telemetry.getDefault().error("SimpleCamera.setNextOutputFile", e);
+            }
+        }
+        if (mSegmentDurationMs > 0) {
+            mCameraHandler.removeCallbacks(mRotateSegmentRunnable);
+            mCameraHandler.postDelayed(mRotateSegmentRunnable, mSegmentDurationMs);
+        }
+        if (mSegment.mIndex > 0) {
+            mLastSegmentGapMs = gapMs;
+            if (gapMs > mMaxSegmentGapMs) mMaxSegmentGapMs = gapMs;
+        }
+        _notifySegmentStarted(mSegment, gapMs);
+    }
+
+    private void _finishSegment(SegmentRing.Segment segment) {
+        // deleting is done after the next segment has started, it is not a part of the gap
+        for (SegmentRing.Segment dropped : mSegmentRing.finish(segment))
+            _notifySegmentFinished(dropped, true);
+        _notifySegmentFinished(segment, false);
+    }
+
+    /**
+     * The same recorder goes on with the next file, the camera stays unlocked
+     * and the preview is not touched
+     */
+    private void _rotateSegment() {
+        if (mRecorder == null || mSegment == null || !mDoingRecord) return;
+        mCameraHandler.removeCallbacks(mRotateSegmentRunnable);
+        long stopStart = SystemClock.elapsedRealtime();
+        try {
+            _stopRecorder();
+        } catch (RuntimeException e) {
+            // stopped by the size limit already or nothing has been recorded
+            e.printStackTrace();
+            Telemetry.getDefault().error("SimpleCamera.rotateSegment", e);
+        }
+        mRecorder.reset();
+        SegmentRing.Segment finished = mSegment;
+        if (mNextSegment != null) {
+            mSegmentRing.discard(mNextSegment);
+            mNextSegment = null;
+        }
+        mSegment = mSegmentRing.allocate();
+        try {
+            _prepareRecorder(mSegment.mFile);
+            _startRecorder();
+        } catch (Exception e) {
+            e.printStackTrace();
+            _notifyError(e);
+            mSegmentRing.discard(mSegment);
+            mSegment = null;
+            mRecorder.release();
+            mRecorder = null;
+            mDoingRecord = false;
+            _finishSegment(finished);
+            _reconnectCamera();
+            _updateState();
+            return;
+        }
+        _onSegmentStarted(SystemClock.elapsedRealtime() - stopStart);
+        _finishSegment(finished);
+    }
+
     private void _stopRecording() {
         if (mRecorder == null) return;
-        mRecorder.stop();
-        mRecorder.release();
-        mRecorder = null;
+        if (mCameraHandler != null) mCameraHandler.removeCallbacks(mRotateSegmentRunnable);
+        try {
+            _stopRecorder();
+        } finally {
+            mRecorder.release();
+            mRecorder = null;
+            if (mNextSegment != null) {
+                mSegmentRing.discard(mNextSegment);
+                mNextSegment = null;
+            }
+            if (mSegment != null) {
+                _finishSegment(mSegment);
+                mSegment = null;
+            }
+        }
+        _reconnectCamera();
+    }
+
+    private void _reconnectCamera() {
         if (mCamera == null) return;
 //        mCamera.lock();
         try {
             mCamera.reconnect();
         } catch (IOException e) {
             e.printStackTrace();
+            Telemetry.getDefault().error("SimpleCamera.reconnectCamera", e);
         }
         // Samsung sucks here - we have to restart preview
         // https://code.google.com/p/android/issues/detail?id=52734
@@ -626,6 +2446,20 @@ public class SimpleCamera {
             mCamera.stopPreview();
             mCamera.startPreview();
         }
+        // the surface has been replaced while recording
+        if (mPreviewDisplayStale && mReadySurfaceHolder != null) {
+            mPreviewDisplayStale = false;
+            try {
+                mCamera.stopPreview();
+                mCamera.setPreviewDisplay(mReadySurfaceHolder);
+                mCamera.startPreview();
+            } catch (Exception e) {
+                e.printStackTrace();
+                Telemetry.getDefault().error("SimpleCamera.reconnectCamera", e);
+            }
+            mLastReattachTimeMs = SystemClock.elapsedRealtime() - mSurfaceReadyMs;
+            mReattachCount++;
+        }
     }
 
 }
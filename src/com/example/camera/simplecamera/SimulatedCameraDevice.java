@@ -0,0 +1,187 @@
+package com.example.camera.simplecamera;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CameraDevice without hardware: NV21 frames at a fixed rate into the added buffers
+ * and synthetic JPEGs after the configured shutter latency.
+ * Every callback comes on the single device thread, as a real camera
+ * calls back on its own looper. A frame without a free buffer is lost, as in the HAL.
+ */
+public class SimulatedCameraDevice implements CameraDevice {
+
+    public static class Config {
+        public int previewWidth = 1280;
+        public int previewHeight = 720;
+        public int fps = 30;
+        public int pictureWidth = 4000;
+        public int pictureHeight = 3000;
+        /** 0 - about 0.4 bytes per pixel like a camera JPEG */
+        public int jpegBytes = 0;
+        public long openLatencyMs = 0;
+        public long focusLatencyMs = 0;
+        public long shutterLatencyMs = 0;
+    }
+
+    private final Config mConfig;
+    private final ScheduledExecutorService mThread;
+    private final ConcurrentLinkedQueue<byte[]> mBuffers = new ConcurrentLinkedQueue<byte[]>();
+    private final byte[] mFrameTemplate;
+    private final byte[] mJpegTemplate;
+    private volatile FrameCallback mFrameCallback = null;
+    private volatile boolean mPreviewing = false;
+    private volatile boolean mTakingPicture = false;
+
+    private final AtomicLong mFrameCount = new AtomicLong();
+    private final AtomicLong mNoBufferCount = new AtomicLong();
+    private final AtomicLong mPictureCount = new AtomicLong();
+
+    /**
+     * Blocks for config.openLatencyMs like Camera.open()
+     */
+    public static SimulatedCameraDevice open(Config config) throws InterruptedException {
+        if (config.openLatencyMs > 0) Thread.sleep(config.openLatencyMs);
+        return new SimulatedCameraDevice(config);
+    }
+
+    private SimulatedCameraDevice(Config config) {
+        if (config.fps <= 0) throw new IllegalArgumentException("fps must be positive");
+        mConfig = config;
+        mFrameTemplate = new byte[getFrameSize()];
+        int ySize = config.previewWidth * config.previewHeight;
+        for (int i = 0; i < ySize; i++) mFrameTemplate[i] = (byte) (i % config.previewWidth);
+        Arrays.fill(mFrameTemplate, ySize, mFrameTemplate.length, (byte) 128);
+        int jpegBytes = config.jpegBytes > 0 ? config.jpegBytes :
+                (int) ((long) config.pictureWidth * config.pictureHeight * 2 / 5);
+        mJpegTemplate = new byte[Math.max(jpegBytes, 4)];
+        for (int i = 0; i < mJpegTemplate.length; i++) mJpegTemplate[i] = (byte) (i * 31);
+        // SOI ... EOI
+        mJpegTemplate[0] = (byte) 0xFF;
+        mJpegTemplate[1] = (byte) 0xD8;
+        mJpegTemplate[mJpegTemplate.length - 2] = (byte) 0xFF;
+        mJpegTemplate[mJpegTemplate.length - 1] = (byte) 0xD9;
+
+        mThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SimulatedCamera");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long periodNs = 1000000000L / config.fps;
+        mThread.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                _emitFrame();
+            }
+        }, periodNs, periodNs, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * NV21 size of a preview frame
+     */
+    public int getFrameSize() {
+        return mConfig.previewWidth * mConfig.previewHeight * 3 / 2;
+    }
+
+    public int getPreviewWidth() {
+        return mConfig.previewWidth;
+    }
+
+    public int getPreviewHeight() {
+        return mConfig.previewHeight;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount.get();
+    }
+
+    /**
+     * @return frames lost because every buffer was held by the consumer
+     */
+    public long getNoBufferCount() {
+        return mNoBufferCount.get();
+    }
+
+    public long getPictureCount() {
+        return mPictureCount.get();
+    }
+
+    @Override
+    public void addBuffer(byte[] buffer) {
+        if (buffer.length < getFrameSize())
+            throw new IllegalArgumentException("buffer is too small");
+        mBuffers.add(buffer);
+    }
+
+    @Override
+    public void setFrameCallback(FrameCallback callback) {
+        mFrameCallback = callback;
+        if (callback == null) mBuffers.clear();
+    }
+
+    @Override
+    public void startPreview() {
+        mPreviewing = true;
+    }
+
+    @Override
+    public void stopPreview() {
+        mPreviewing = false;
+    }
+
+    @Override
+    public void autoFocus(final FocusCallback callback) {
+        mThread.schedule(new Runnable() {
+            @Override
+            public void run() {
+                callback.onFocus(true);
+            }
+        }, mConfig.focusLatencyMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void takePicture(final PictureCallback callback) {
+        if (!mPreviewing || mTakingPicture)
+            throw new RuntimeException("takePicture failed");
+        mTakingPicture = true;
+        mThread.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mPreviewing = false;
+                mTakingPicture = false;
+                mPictureCount.incrementAndGet();
+                // every picture is a new array, as from the camera
+                callback.onPicture(mJpegTemplate.clone());
+            }
+        }, mConfig.shutterLatencyMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void release() {
+        mPreviewing = false;
+        mFrameCallback = null;
+        mThread.shutdownNow();
+        mBuffers.clear();
+    }
+
+    private void _emitFrame() {
+        FrameCallback callback = mFrameCallback;
+        if (!mPreviewing || mTakingPicture || callback == null) return;
+        byte[] buffer = mBuffers.poll();
+        if (buffer == null) {
+            mNoBufferCount.incrementAndGet();
+            return;
+        }
+        System.arraycopy(mFrameTemplate, 0, buffer, 0, mFrameTemplate.length);
+        mFrameCount.incrementAndGet();
+        callback.onFrame(buffer);
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.camera.simplecamera;
+
+import com.example.camera.tool.Histogram;
+
+/**
+ * Result of SimpleCamera.startTimeLapse(), also available while it runs.
+ * Jitter is how late takePicture() has been called after its slot.
+ */
+public class TimeLapseStats {
+    final long mIntervalMs;
+    final Histogram mJitter = new Histogram();
+    volatile int mShotCount = 0;
+    volatile int mMissedCount = 0;
+    volatile int mLateCount = 0;
+    volatile long mStartMs = 0;
+    volatile long mDurationMs = 0;
+    volatile long mTotalShotMs = 0;
+    volatile long mMaxShotMs = 0;
+    volatile boolean mCancelled = false;
+
+    TimeLapseStats(long intervalMs) {
+        mIntervalMs = intervalMs;
+    }
+
+    void addShot(long jitterMs, long shotMs) {
+        mShotCount++;
+        mJitter.record(jitterMs);
+        if (jitterMs >= mIntervalMs) mLateCount++;
+        mTotalShotMs += shotMs;
+        if (shotMs > mMaxShotMs) mMaxShotMs = shotMs;
+    }
+
+    public long getIntervalMs() {
+        return mIntervalMs;
+    }
+
+    public int getShotCount() {
+        return mShotCount;
+    }
+
+    /**
+     * slots given up by Overrun.SKIP
+     */
+    public int getMissedSlotCount() {
+        return mMissedCount;
+    }
+
+    /**
+     * shots taken a whole interval or more after their slot, Overrun.CATCH_UP
+     */
+    public int getLateShotCount() {
+        return mLateCount;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * elapsedRealtime() of the first slot
+     */
+    public long getStartMs() {
+        return mStartMs;
+    }
+
+    public long getDurationMs() {
+        return mDurationMs;
+    }
+
+    public double getMeanJitterMs() {
+        return mJitter.snapshot().getMean();
+    }
+
+    public long getMaxJitterMs() {
+        return mJitter.snapshot().getMax();
+    }
+
+    /**
+     * @param percentile 0..100, within 25%
+     */
+    public long getJitterPercentileMs(double percentile) {
+        return mJitter.snapshot().getPercentile(percentile);
+    }
+
+    /**
+     * average time from takePicture() to the JPEG callback
+     */
+    public long getAverageShotTimeMs() {
+        int count = mShotCount;
+        if (count == 0) return 0;
+        return mTotalShotMs / count;
+    }
+
+    public long getMaxShotTimeMs() {
+        return mMaxShotMs;
+    }
+
+    @Override
+    public String toString() {
+        Histogram.Snapshot jitter = mJitter.snapshot();
+        return "TimeLapseStats{shots=" + mShotCount +
+                ", interval=" + mIntervalMs + "ms" +
+                ", missed=" + mMissedCount +
+                ", late=" + mLateCount +
+                ", duration=" + mDurationMs + "ms" +
+                ", jitter mean=" + jitter.getMean() + "ms" +
+                " p95=" + jitter.getPercentile(95) + "ms" +
+                " max=" + jitter.getMax() + "ms" +
+                ", avgShot=" + getAverageShotTimeMs() + "ms" +
+                ", maxShot=" + mMaxShotMs + "ms" +
+                (mCancelled ? ", cancelled" : "") + "}";
+    }
+}
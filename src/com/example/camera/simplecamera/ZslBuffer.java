@@ -0,0 +1,99 @@
+package com.example.camera.simplecamera;
+
+/**
+ * Keeps copies of the last preview frames for zero shutter lag capture.
+ * All slots are allocated once, push() only copies. Frames taken for a picture
+ * are copied into a small pool which is allocated on the first picture.
+ */
+class ZslBuffer {
+
+    // pictures being encoded at once without an allocation
+    private static final int SPARE_COUNT = 2;
+
+    private final byte[][] mSlots;
+    private final long[] mTimestamps;
+    private final byte[][] mSpares = new byte[SPARE_COUNT][];
+    private int mSpareCount = 0;
+    private final int mWidth;
+    private final int mHeight;
+    private int mNext = 0;
+    private int mFilled = 0;
+
+    ZslBuffer(int depth, int width, int height, int frameSize) {
+        if (depth < 1) throw new IllegalArgumentException("depth must be positive");
+        mWidth = width;
+        mHeight = height;
+        mSlots = new byte[depth][frameSize];
+        mTimestamps = new long[depth];
+    }
+
+    boolean fits(int depth, int width, int height) {
+        return mSlots.length == depth && mWidth == width && mHeight == height;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    int getFrameSize() {
+        return mSlots[0].length;
+    }
+
+    synchronized void push(byte[] data, long timestampNs) {
+        System.arraycopy(data, 0, mSlots[mNext], 0, Math.min(data.length, mSlots[mNext].length));
+        mTimestamps[mNext] = timestampNs;
+        mNext = (mNext + 1) % mSlots.length;
+        if (mFilled < mSlots.length) mFilled++;
+    }
+
+    synchronized void clear() {
+        mFilled = 0;
+        mNext = 0;
+    }
+
+    /**
+     * Copy of the frame nearest to timestampNs in a pooled buffer, give it back by recycle()
+     *
+     * @return null if there are no frames yet
+     */
+    synchronized byte[] takeNearest(long timestampNs) {
+        if (mFilled == 0) return null;
+        byte[] out;
+        if (mSpareCount > 0) {
+            out = mSpares[--mSpareCount];
+            mSpares[mSpareCount] = null;
+        } else {
+            // the pool fills up by recycle(), more pictures at once are allocated
+            out = new byte[mSlots[0].length];
+        }
+        copyNearest(timestampNs, out);
+        return out;
+    }
+
+    synchronized void recycle(byte[] buffer) {
+        if (buffer == null || buffer.length != mSlots[0].length) return;
+        if (mSpareCount < SPARE_COUNT) mSpares[mSpareCount++] = buffer;
+    }
+
+    /**
+     * @return timestamp of the copied frame, -1 if there are no frames yet
+     */
+    synchronized long copyNearest(long timestampNs, byte[] out) {
+        int best = -1;
+        long bestDiff = Long.MAX_VALUE;
+        for (int i = 0; i < mFilled; i++) {
+            long diff = Math.abs(mTimestamps[i] - timestampNs);
+            if (diff < bestDiff) {
+                bestDiff = diff;
+                best = i;
+            }
+        }
+        if (best < 0) return -1;
+        System.arraycopy(mSlots[best], 0, out, 0, Math.min(out.length, mSlots[best].length));
+        return mTimestamps[best];
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.camera.tool;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Mutable Bitmaps kept for reuse, looked up by width, height and config.
+ * The least recently returned ones are recycled when the pool grows over its byte budget.
+ */
+public class BitmapPool {
+
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+    private long mMaxBytes;
+    private long mBytes = 0;
+
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+    private int mEvictionCount = 0;
+
+    public BitmapPool(long maxBytes) {
+        if (maxBytes < 0) throw new IllegalArgumentException("maxBytes must not be negative");
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return Bitmap with undefined content or null if there is no such one in the pool
+     */
+    public synchronized Bitmap getDirty(int width, int height, Bitmap.Config config) {
+        // the most recent ones are at the end
+        Iterator<Bitmap> it = mBitmaps.descendingIterator();
+        while (it.hasNext()) {
+            Bitmap bmp = it.next();
+            if (bmp.getWidth() == width && bmp.getHeight() == height &&
+                    bmp.getConfig() == config) {
+                it.remove();
+                mBytes -= sizeOf(bmp);
+                mHitCount++;
+                return bmp;
+            }
+        }
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * @return transparent Bitmap from the pool or a new one
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bmp = getDirty(width, height, config);
+        if (bmp != null) {
+            bmp.eraseColor(0);
+            return bmp;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * The Bitmap must not be used after that
+     */
+    public synchronized void put(Bitmap bmp) {
+        if (bmp == null || bmp.isRecycled()) return;
+        if (!bmp.isMutable() || bmp.getConfig() == null || sizeOf(bmp) > mMaxBytes) {
+            bmp.recycle();
+            return;
+        }
+        if (mBitmaps.contains(bmp)) return;
+        mBitmaps.addLast(bmp);
+        mBytes += sizeOf(bmp);
+        _trim(mMaxBytes);
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) throw new IllegalArgumentException("maxBytes must not be negative");
+        mMaxBytes = maxBytes;
+        _trim(maxBytes);
+    }
+
+    public synchronized void trimToSize(long bytes) {
+        _trim(bytes);
+    }
+
+    public synchronized void clear() {
+        _trim(0);
+    }
+
+    public synchronized long getSizeBytes() {
+        return mBytes;
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public static long sizeOf(Bitmap bmp) {
+        return (long) bmp.getRowBytes() * bmp.getHeight();
+    }
+
+    private void _trim(long bytes) {
+        while (mBytes > bytes && !mBitmaps.isEmpty()) {
+            Bitmap bmp = mBitmaps.removeFirst();
+            mBytes -= sizeOf(bmp);
+            mEvictionCount++;
+            bmp.recycle();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool{" + mBytes + "/" + mMaxBytes + " bytes, " + mBitmaps.size() + " bitmaps" +
+                ", hits=" + mHitCount + ", misses=" + mMissCount +
+                ", evictions=" + mEvictionCount + "}";
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.camera.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads only the EXIF orientation: segment headers are read one by one
+ * from the file channel, the APP1 segment only up to IFD0 (usually one 4 KB read),
+ * and nothing after the first non APPn segment.
+ * Results are kept in a small LRU keyed by path, modification time and length.
+ * Pure Java, does not depend on Android.
+ */
+public class ExifOrientationReader {
+
+    // IFD0 of camera JPEGs is within the first few hundred bytes of APP1
+    private static final int FIRST_READ = 4096;
+
+    private static class CachedOrientation {
+        final long mLastModified;
+        final long mLength;
+        final int mOrientation;
+
+        CachedOrientation(long lastModified, long length, int orientation) {
+            mLastModified = lastModified;
+            mLength = length;
+            mOrientation = orientation;
+        }
+    }
+
+    private final LinkedHashMap<String, CachedOrientation> mCache;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(4);
+    private final ByteBuffer mSegment = ByteBuffer.allocate(FIRST_READ);
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+
+    /**
+     * @param cacheSize files remembered, 0 - no cache
+     */
+    public ExifOrientationReader(final int cacheSize) {
+        if (cacheSize < 0) throw new IllegalArgumentException("cacheSize must not be negative");
+        mCache = new LinkedHashMap<String, CachedOrientation>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedOrientation> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * @return JpegExif.ORIENTATION_*, ORIENTATION_UNDEFINED if there is none
+     * or the file can not be read
+     */
+    public synchronized int getOrientation(File file) {
+        String key = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        CachedOrientation entry = mCache.get(key);
+        if (entry != null && entry.mLastModified == lastModified && entry.mLength == length) {
+            mHitCount++;
+            return entry.mOrientation;
+        }
+        mMissCount++;
+        int orientation;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            orientation = _read(in.getChannel(), mHeader, mSegment);
+        } catch (IOException e) {
+            orientation = JpegExif.ORIENTATION_UNDEFINED;
+        } finally {
+            if (in != null) try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+        mCache.put(key, new CachedOrientation(lastModified, length, orientation));
+        return orientation;
+    }
+
+    /**
+     * The same buffers serve the whole batch
+     */
+    public synchronized int[] getOrientations(List<File> files) {
+        int[] orientations = new int[files.size()];
+        for (int i = 0; i < orientations.length; i++) {
+            orientations[i] = getOrientation(files.get(i));
+        }
+        return orientations;
+    }
+
+    /**
+     * Call after the file has been rewritten within the modification time resolution
+     */
+    public synchronized void invalidate(File file) {
+        mCache.remove(file.getAbsolutePath());
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @param channel is read from the start with positional reads, its position is not changed
+     */
+    public static int readOrientation(FileChannel channel) throws IOException {
+        return _read(channel, ByteBuffer.allocate(4), ByteBuffer.allocate(FIRST_READ));
+    }
+
+    /**
+     * @param jpeg whole JPEG in memory, e.g. from Camera.PictureCallback
+     */
+    public static int readOrientation(byte[] jpeg) {
+        if (jpeg == null || jpeg.length < 4) return JpegExif.ORIENTATION_UNDEFINED;
+        if ((jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != JpegExif.MARKER_SOI)
+            return JpegExif.ORIENTATION_UNDEFINED;
+        int pos = 2;
+        while (pos + 4 <= jpeg.length) {
+            if ((jpeg[pos] & 0xFF) != 0xFF) break;
+            int marker = jpeg[pos + 1] & 0xFF;
+            // fill byte
+            if (marker == 0xFF) {
+                pos++;
+                continue;
+            }
+            if (!_isHeaderSegment(marker)) break;
+            int length = ((jpeg[pos + 2] & 0xFF) << 8) | (jpeg[pos + 3] & 0xFF);
+            if (length < 2) break;
+            if (marker == JpegExif.MARKER_APP1) {
+                int offset = pos + 4;
+                int available = Math.min(length - 2, jpeg.length - offset);
+                if (JpegExif.isExif(jpeg, offset, available))
+                    return JpegExif.readOrientation(jpeg, offset, available);
+            }
+            pos += 2 + length;
+        }
+        return JpegExif.ORIENTATION_UNDEFINED;
+    }
+
+    private static int _read(FileChannel channel, ByteBuffer header, ByteBuffer segment)
+            throws IOException {
+        long size = channel.size();
+        header.clear();
+        header.limit(2);
+        if (!_readFully(channel, header, 0)) return JpegExif.ORIENTATION_UNDEFINED;
+        byte[] h = header.array();
+        if ((h[0] & 0xFF) != 0xFF || (h[1] & 0xFF) != JpegExif.MARKER_SOI)
+            return JpegExif.ORIENTATION_UNDEFINED;
+        long pos = 2;
+        while (pos + 4 <= size) {
+            header.clear();
+            if (!_readFully(channel, header, pos)) break;
+            if ((h[0] & 0xFF) != 0xFF) break;
+            int marker = h[1] & 0xFF;
+            if (marker == 0xFF) {
+                pos++;
+                continue;
+            }
+            if (!_isHeaderSegment(marker)) break;
+            int length = ((h[2] & 0xFF) << 8) | (h[3] & 0xFF);
+            if (length < 2) break;
+            if (marker == JpegExif.MARKER_APP1) {
+                int payload = (int) Math.min(length - 2, size - pos - 4);
+                int read = _readSegment(channel, segment, pos + 4, Math.min(payload, FIRST_READ));
+                byte[] data = segment.array();
+                if (JpegExif.isExif(data, 0, read)) {
+                    int orientation = JpegExif.readOrientation(data, 0, read);
+                    // IFD0 goes on after the first read
+                    if (orientation == JpegExif.ORIENTATION_UNDEFINED && payload > read) {
+                        segment = ByteBuffer.allocate(payload);
+                        read = _readSegment(channel, segment, pos + 4, payload);
+                        orientation = JpegExif.readOrientation(segment.array(), 0, read);
+                    }
+                    return orientation;
+                }
+            }
+            // skipped without reading
+            pos += 2 + length;
+        }
+        return JpegExif.ORIENTATION_UNDEFINED;
+    }
+
+    private static int _readSegment(FileChannel channel, ByteBuffer segment, long pos, int length)
+            throws IOException {
+        segment.clear();
+        segment.limit(length);
+        _readFully(channel, segment, pos);
+        return segment.position();
+    }
+
+    /**
+     * @return false if the file has ended before the buffer is full
+     */
+    private static boolean _readFully(FileChannel channel, ByteBuffer buffer, long pos)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, pos);
+            if (count < 0) return false;
+            pos += count;
+        }
+        return true;
+    }
+
+    private static boolean _isHeaderSegment(int marker) {
+        return (marker >= JpegExif.MARKER_APP0 && marker <= JpegExif.MARKER_APP15) ||
+                marker == JpegExif.MARKER_COM;
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.camera.tool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * File copying by the kernel (FileChannel.transferTo).
+ * The destination appears only when it is complete:
+ * data goes to a temporary file which is synced and renamed.
+ * Pure Java, does not depend on Android.
+ */
+public class FileTransfer {
+
+    public interface ProgressListener {
+        void onProgress(long bytesDone, long bytesTotal);
+
+        /**
+         * @param renamed the file was moved by rename, nothing was copied
+         */
+        void onFinished(long bytes, long durationNs, boolean renamed);
+    }
+
+    // progress is reported and the channel is checked after every chunk
+    private static final long CHUNK_SIZE = 8 * 1024 * 1024;
+
+    public static void copy(File source, File dest, ProgressListener listener) throws IOException {
+        long start = System.nanoTime();
+        long size = _copy(source, dest, listener);
+        long duration = System.nanoTime() - start;
+        Telemetry.getDefault().recordThroughput(size, duration);
+        if (listener != null) listener.onFinished(size, duration, false);
+    }
+
+    /**
+     * Renames if the files are on the same file system, otherwise copies and deletes the source
+     */
+    public static void move(File source, File dest, ProgressListener listener) throws IOException {
+        long start = System.nanoTime();
+        long size = source.length();
+        if (source.renameTo(dest)) {
+            if (listener != null) {
+                listener.onProgress(size, size);
+                listener.onFinished(size, System.nanoTime() - start, true);
+            }
+            return;
+        }
+        size = _copy(source, dest, listener);
+        if (!source.delete()) throw new IOException("can not delete " + source);
+        if (listener != null) listener.onFinished(size, System.nanoTime() - start, false);
+    }
+
+    private static long _copy(File source, File dest, ProgressListener listener) throws IOException {
+        File dir = dest.getAbsoluteFile().getParentFile();
+        // unique, concurrent copies to the same destination do not share it,
+        //  the prefix needs 3 characters
+        File temp = File.createTempFile("." + dest.getName() + "-", ".part", dir);
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        boolean success = false;
+        try {
+            in = new FileInputStream(source);
+            out = new FileOutputStream(temp);
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long size = inChannel.size();
+            long position = 0;
+            while (position < size) {
+                long count = inChannel.transferTo(position,
+                        Math.min(CHUNK_SIZE, size - position), outChannel);
+                if (count <= 0) {
+                    // the source has been truncated meanwhile
+                    if (inChannel.size() <= position) break;
+                    // some kernels refuse sendfile() for a pair of files,
+                    //  transferFrom() reads from the current position of the source
+                    inChannel.position(position);
+                    count = outChannel.transferFrom(inChannel, position,
+                            Math.min(CHUNK_SIZE, size - position));
+                    if (count <= 0) throw new IOException("can not copy " + source);
+                }
+                position += count;
+                if (listener != null) listener.onProgress(position, size);
+            }
+            outChannel.force(true);
+            out.close();
+            out = null;
+            if (!temp.renameTo(dest)) {
+                // some file systems do not replace on rename
+                if (!dest.delete() || !temp.renameTo(dest))
+                    throw new IOException("can not rename " + temp + " to " + dest);
+            }
+            success = true;
+            return position;
+        } finally {
+            _closeQuietly(in);
+            _closeQuietly(out);
+            if (!success) temp.delete();
+        }
+    }
+
+    private static void _closeQuietly(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+        }
+    }
+}
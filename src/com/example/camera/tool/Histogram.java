@@ -0,0 +1,139 @@
+package com.example.camera.tool;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non negative values, recording allocates nothing.
+ * Every power of two is split into 4 buckets, so percentiles are within 25%.
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 2;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    public static class Snapshot {
+        private final long mCount;
+        private final long mSum;
+        private final long mMin;
+        private final long mMax;
+        private final long[] mBuckets;
+
+        Snapshot(long count, long sum, long min, long max, long[] buckets) {
+            mCount = count;
+            mSum = sum;
+            mMin = min;
+            mMax = max;
+            mBuckets = buckets;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getSum() {
+            return mSum;
+        }
+
+        public long getMin() {
+            return mMin;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        /**
+         * @param percentile 0..100
+         * @return upper bound of the bucket, but not more than the max
+         */
+        public long getPercentile(double percentile) {
+            long total = 0;
+            for (long b : mBuckets) total += b;
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * percentile / 100);
+            if (rank < 1) rank = 1;
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) return Math.min(_upperBound(i), mMax);
+            }
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount +
+                    " mean=" + String.format(Locale.US, "%.1f", getMean()) +
+                    " p50=" + getPercentile(50) +
+                    " p90=" + getPercentile(90) +
+                    " p99=" + getPercentile(99) +
+                    " min=" + mMin +
+                    " max=" + mMax;
+        }
+    }
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param value negative ones are taken as 0
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        mBuckets.incrementAndGet(_index(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long min;
+        while (value < (min = mMin.get()) && !mMin.compareAndSet(min, value)) ;
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) ;
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Values being recorded meanwhile may be partly counted
+     */
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) buckets[i] = mBuckets.get(i);
+        long count = mCount.get();
+        return new Snapshot(count, mSum.get(),
+                count == 0 ? 0 : mMin.get(), count == 0 ? 0 : mMax.get(), buckets);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) mBuckets.set(i, 0);
+        mCount.set(0);
+        mSum.set(0);
+        mMin.set(Long.MAX_VALUE);
+        mMax.set(Long.MIN_VALUE);
+    }
+
+    static int _index(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int power = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (power - SUB_BITS)) & (SUB_COUNT - 1);
+        return (power - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    static long _upperBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int power = index / SUB_COUNT + SUB_BITS - 1;
+        int sub = index % SUB_COUNT;
+        long lower = (long) (SUB_COUNT + sub) << (power - SUB_BITS);
+        return lower + (1L << (power - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,411 @@
+package com.example.camera.tool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lossless JPEG rotation and mirroring through the EXIF orientation tag.
+ * Only the header segments are read into memory, the compressed image data
+ * is streamed to the output untouched, pixels are never decoded.
+ * Pure Java, does not depend on Android.
+ */
+public class JpegExif {
+
+    public static final int ORIENTATION_UNDEFINED = 0;
+    public static final int ORIENTATION_NORMAL = 1;
+    public static final int ORIENTATION_FLIP_HORIZONTAL = 2;
+    public static final int ORIENTATION_ROTATE_180 = 3;
+    public static final int ORIENTATION_FLIP_VERTICAL = 4;
+    public static final int ORIENTATION_TRANSPOSE = 5;
+    public static final int ORIENTATION_ROTATE_90 = 6;
+    public static final int ORIENTATION_TRANSVERSE = 7;
+    public static final int ORIENTATION_ROTATE_270 = 8;
+
+    static final int MARKER_SOI = 0xD8;
+    static final int MARKER_APP0 = 0xE0;
+    static final int MARKER_APP1 = 0xE1;
+    static final int MARKER_APP15 = 0xEF;
+    static final int MARKER_COM = 0xFE;
+
+    static final int TAG_ORIENTATION = 0x0112;
+    static final int TYPE_SHORT = 3;
+    static final int TIFF_START = 6; // after "Exif\0\0"
+
+    private static final int MAX_SEGMENT_LENGTH = 0xFFFF;
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    // orientation as "mirror horizontally first, then rotate clockwise",
+    //  indexed by EXIF orientation
+    private static final boolean[] ORIENTATION_MIRROR =
+            {false, false, true, false, true, true, false, true, false};
+    private static final int[] ORIENTATION_ROTATION =
+            {0, 0, 0, 180, 180, 270, 90, 90, 270};
+
+    /**
+     * @return 0, 90, 180, 270 or -1 if the orientation is mirrored
+     */
+    public static int orientationToRotation(int orientation) {
+        if (orientation < ORIENTATION_NORMAL || orientation > ORIENTATION_ROTATE_270) return 0;
+        if (ORIENTATION_MIRROR[orientation]) return -1;
+        return ORIENTATION_ROTATION[orientation];
+    }
+
+    /**
+     * The image is displayed mirrored left to right and then rotated by getRotation()
+     */
+    public static boolean isMirrored(int orientation) {
+        if (orientation < ORIENTATION_NORMAL || orientation > ORIENTATION_ROTATE_270) return false;
+        return ORIENTATION_MIRROR[orientation];
+    }
+
+    /**
+     * @return 0, 90, 180 or 270 clockwise, after the mirror of isMirrored()
+     */
+    public static int getRotation(int orientation) {
+        if (orientation < ORIENTATION_NORMAL || orientation > ORIENTATION_ROTATE_270) return 0;
+        return ORIENTATION_ROTATION[orientation];
+    }
+
+    /**
+     * Orientation of the image displayed with the given orientation
+     * and then rotated clockwise by the angle
+     */
+    public static int rotateOrientation(int orientation, int angle) {
+        _checkAngle(angle);
+        if (orientation < ORIENTATION_NORMAL || orientation > ORIENTATION_ROTATE_270)
+            orientation = ORIENTATION_NORMAL;
+        return _toOrientation(ORIENTATION_MIRROR[orientation],
+                ORIENTATION_ROTATION[orientation] + angle);
+    }
+
+    /**
+     * Orientation of the image displayed with the given orientation and then mirrored
+     *
+     * @param vertical upside down, otherwise left to right
+     */
+    public static int mirrorOrientation(int orientation, boolean vertical) {
+        if (orientation < ORIENTATION_NORMAL || orientation > ORIENTATION_ROTATE_270)
+            orientation = ORIENTATION_NORMAL;
+        // M * R(r) == R(-r) * M, vertical mirror is R(180) * M
+        int rotation = 360 - ORIENTATION_ROTATION[orientation];
+        if (vertical) rotation += 180;
+        return _toOrientation(!ORIENTATION_MIRROR[orientation], rotation);
+    }
+
+    /**
+     * Rotate clockwise, in and out may be the same file
+     */
+    public static void rotate(File in, File out, final int angle) throws IOException {
+        _checkAngle(angle);
+        rewriteOrientation(in, out, new OrientationUpdate() {
+            @Override
+            public int update(int orientation) {
+                return rotateOrientation(orientation, angle);
+            }
+        });
+    }
+
+    /**
+     * in and out may be the same file
+     */
+    public static void mirror(File in, File out, final boolean vertical) throws IOException {
+        rewriteOrientation(in, out, new OrientationUpdate() {
+            @Override
+            public int update(int orientation) {
+                return mirrorOrientation(orientation, vertical);
+            }
+        });
+    }
+
+    interface OrientationUpdate {
+        int update(int orientation);
+    }
+
+    /**
+     * Copies JPEG changing only the orientation tag,
+     * EXIF segment is created if there is none
+     */
+    static void rewriteOrientation(File in, File out, OrientationUpdate update) throws IOException {
+        boolean sameFile = in.getCanonicalFile().equals(out.getCanonicalFile());
+        File target = sameFile ? new File(out.getPath() + ".tmp") : out;
+        DataInputStream is = null;
+        OutputStream os = null;
+        boolean success = false;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(in), 16 * 1024));
+            os = new BufferedOutputStream(new FileOutputStream(target), 64 * 1024);
+            _rewrite(is, os, update);
+            os.close();
+            os = null;
+            success = true;
+        } finally {
+            _closeQuietly(is);
+            _closeQuietly(os);
+            if (!success) target.delete();
+        }
+        if (sameFile && !target.renameTo(out)) {
+            target.delete();
+            throw new IOException("can not replace " + out);
+        }
+    }
+
+    private static void _rewrite(DataInputStream is, OutputStream os,
+                                 OrientationUpdate update) throws IOException {
+        if (is.readUnsignedByte() != 0xFF || is.readUnsignedByte() != MARKER_SOI)
+            throw new IOException("not a JPEG");
+
+        // application segments are small and go first, keep them to place EXIF properly
+        List<byte[]> segments = new ArrayList<byte[]>();
+        List<Integer> markers = new ArrayList<Integer>();
+        int exifIndex = -1;
+        int marker;
+        while (true) {
+            marker = readMarker(is);
+            if (!(marker >= MARKER_APP0 && marker <= MARKER_APP15) && marker != MARKER_COM) break;
+            int length = is.readUnsignedShort();
+            if (length < 2) throw new IOException("broken segment");
+            byte[] segment = new byte[length - 2];
+            is.readFully(segment);
+            if (marker == MARKER_APP1 && exifIndex < 0 && isExif(segment, 0, segment.length))
+                exifIndex = segments.size();
+            segments.add(segment);
+            markers.add(marker);
+        }
+
+        byte[] exif;
+        if (exifIndex >= 0) {
+            exif = _updateExif(segments.get(exifIndex), update);
+        } else {
+            exif = _newExif(update.update(ORIENTATION_NORMAL));
+        }
+
+        os.write(0xFF);
+        os.write(MARKER_SOI);
+        int i = 0;
+        // JFIF must stay the first one
+        if (!markers.isEmpty() && markers.get(0) == MARKER_APP0 && exifIndex != 0) {
+            _writeSegment(os, MARKER_APP0, segments.get(0));
+            i = 1;
+        }
+        _writeSegment(os, MARKER_APP1, exif);
+        for (; i < segments.size(); i++) {
+            if (i == exifIndex) continue;
+            _writeSegment(os, markers.get(i), segments.get(i));
+        }
+        os.write(0xFF);
+        os.write(marker);
+
+        // the rest is copied as is
+        byte[] buffer = new byte[64 * 1024];
+        int count;
+        while ((count = is.read(buffer)) > 0) {
+            os.write(buffer, 0, count);
+        }
+    }
+
+    static int readMarker(InputStream is) throws IOException {
+        int b = is.read();
+        if (b != 0xFF) throw new IOException("marker expected");
+        // fill bytes
+        while (b == 0xFF) {
+            b = is.read();
+        }
+        if (b < 0) throw new EOFException();
+        return b;
+    }
+
+    static boolean isExif(byte[] data, int offset, int length) {
+        if (length < TIFF_START + 8) return false;
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (data[offset + i] != EXIF_HEADER[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param tiffStart position of the TIFF header
+     * @return position of the IFD0 orientation entry, -1 if there is no such entry
+     */
+    static int findOrientationEntry(byte[] data, int tiffStart, int tiffEnd) {
+        boolean little = _isLittleEndian(data, tiffStart);
+        long ifd0 = _readInt(data, tiffStart + 4, little);
+        int ifd = tiffStart + (int) ifd0;
+        if (ifd0 < 8 || ifd + 2 > tiffEnd) return -1;
+        int count = _readShort(data, ifd, little);
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > tiffEnd) return -1;
+            int tag = _readShort(data, entry, little);
+            if (tag == TAG_ORIENTATION) return entry;
+            // tags are sorted
+            if (tag > TAG_ORIENTATION) return -1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return orientation from APP1 payload starting with "Exif\0\0", 0 if there is none
+     */
+    static int readOrientation(byte[] data, int offset, int length) {
+        if (!isExif(data, offset, length)) return ORIENTATION_UNDEFINED;
+        int tiffStart = offset + TIFF_START;
+        if (!_isTiffHeader(data, tiffStart)) return ORIENTATION_UNDEFINED;
+        int entry = findOrientationEntry(data, tiffStart, offset + length);
+        if (entry < 0) return ORIENTATION_UNDEFINED;
+        boolean little = _isLittleEndian(data, tiffStart);
+        int orientation = _readShort(data, entry + 8, little);
+        if (orientation > ORIENTATION_ROTATE_270) return ORIENTATION_UNDEFINED;
+        return orientation;
+    }
+
+    private static byte[] _updateExif(byte[] segment, OrientationUpdate update) throws IOException {
+        int tiffStart = TIFF_START;
+        if (!_isTiffHeader(segment, tiffStart)) throw new IOException("broken EXIF");
+        boolean little = _isLittleEndian(segment, tiffStart);
+        int entry = findOrientationEntry(segment, tiffStart, segment.length);
+        if (entry >= 0) {
+            int orientation = _readShort(segment, entry + 8, little);
+            _writeShort(segment, entry + 2, TYPE_SHORT, little);
+            _writeInt(segment, entry + 4, 1, little);
+            _writeShort(segment, entry + 8, update.update(orientation), little);
+            _writeShort(segment, entry + 10, 0, little);
+            return segment;
+        }
+
+        // no orientation: IFD0 is copied with the new entry to the end of the segment,
+        //  the old one stays where it is so no offsets are changed
+        int ifd = tiffStart + (int) _readInt(segment, tiffStart + 4, little);
+        if (ifd + 2 > segment.length) throw new IOException("broken EXIF");
+        int count = _readShort(segment, ifd, little);
+        int entriesEnd = ifd + 2 + count * 12;
+        if (entriesEnd + 4 > segment.length) throw new IOException("broken EXIF");
+
+        int newIfd = segment.length + ((segment.length - tiffStart) & 1);
+        int newLength = newIfd + 2 + (count + 1) * 12 + 4;
+        if (newLength + 2 > MAX_SEGMENT_LENGTH) throw new IOException("EXIF is too big");
+        byte[] result = new byte[newLength];
+        System.arraycopy(segment, 0, result, 0, segment.length);
+
+        _writeShort(result, newIfd, count + 1, little);
+        int pos = newIfd + 2;
+        boolean inserted = false;
+        for (int i = 0; i < count; i++) {
+            int entryPos = ifd + 2 + i * 12;
+            if (!inserted && _readShort(segment, entryPos, little) > TAG_ORIENTATION) {
+                _writeOrientationEntry(result, pos, update.update(ORIENTATION_NORMAL), little);
+                pos += 12;
+                inserted = true;
+            }
+            System.arraycopy(segment, entryPos, result, pos, 12);
+            pos += 12;
+        }
+        if (!inserted) {
+            _writeOrientationEntry(result, pos, update.update(ORIENTATION_NORMAL), little);
+            pos += 12;
+        }
+        // next IFD
+        System.arraycopy(segment, entriesEnd, result, pos, 4);
+        _writeInt(result, tiffStart + 4, newIfd - tiffStart, little);
+        return result;
+    }
+
+    private static byte[] _newExif(int orientation) {
+        byte[] result = new byte[TIFF_START + 8 + 2 + 12 + 4];
+        System.arraycopy(EXIF_HEADER, 0, result, 0, EXIF_HEADER.length);
+        int tiffStart = TIFF_START;
+        result[tiffStart] = 'M';
+        result[tiffStart + 1] = 'M';
+        _writeShort(result, tiffStart + 2, 42, false);
+        _writeInt(result, tiffStart + 4, 8, false);
+        _writeShort(result, tiffStart + 8, 1, false);
+        _writeOrientationEntry(result, tiffStart + 10, orientation, false);
+        _writeInt(result, tiffStart + 22, 0, false);
+        return result;
+    }
+
+    private static void _writeOrientationEntry(byte[] data, int pos, int orientation, boolean little) {
+        _writeShort(data, pos, TAG_ORIENTATION, little);
+        _writeShort(data, pos + 2, TYPE_SHORT, little);
+        _writeInt(data, pos + 4, 1, little);
+        _writeShort(data, pos + 8, orientation, little);
+        _writeShort(data, pos + 10, 0, little);
+    }
+
+    private static void _writeSegment(OutputStream os, int marker, byte[] segment) throws IOException {
+        int length = segment.length + 2;
+        if (length > MAX_SEGMENT_LENGTH) throw new IOException("segment is too big");
+        os.write(0xFF);
+        os.write(marker);
+        os.write(length >> 8);
+        os.write(length & 0xFF);
+        os.write(segment);
+    }
+
+    private static int _toOrientation(boolean mirror, int rotation) {
+        rotation = ((rotation % 360) + 360) % 360;
+        for (int o = ORIENTATION_NORMAL; o <= ORIENTATION_ROTATE_270; o++) {
+            if (ORIENTATION_MIRROR[o] == mirror && ORIENTATION_ROTATION[o] == rotation) return o;
+        }
+        return ORIENTATION_NORMAL;
+    }
+
+    private static void _checkAngle(int angle) {
+        if (angle != 0 && angle != 90 && angle != 180 && angle != 270)
+            throw new IllegalArgumentException("angle must be 0, 90, 180 or 270");
+    }
+
+    private static boolean _isTiffHeader(byte[] data, int tiffStart) {
+        if (tiffStart + 8 > data.length) return false;
+        if (data[tiffStart] == 'I' && data[tiffStart + 1] == 'I') return true;
+        return data[tiffStart] == 'M' && data[tiffStart + 1] == 'M';
+    }
+
+    private static boolean _isLittleEndian(byte[] data, int tiffStart) {
+        return data[tiffStart] == 'I';
+    }
+
+    private static int _readShort(byte[] data, int pos, boolean little) {
+        int b0 = data[pos] & 0xFF;
+        int b1 = data[pos + 1] & 0xFF;
+        return little ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static long _readInt(byte[] data, int pos, boolean little) {
+        long result = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = data[pos + (little ? 3 - i : i)] & 0xFF;
+            result = (result << 8) | b;
+        }
+        return result;
+    }
+
+    private static void _writeShort(byte[] data, int pos, int value, boolean little) {
+        data[pos + (little ? 1 : 0)] = (byte) (value >> 8);
+        data[pos + (little ? 0 : 1)] = (byte) value;
+    }
+
+    private static void _writeInt(byte[] data, int pos, long value, boolean little) {
+        for (int i = 0; i < 4; i++) {
+            data[pos + (little ? i : 3 - i)] = (byte) (value >> (8 * i));
+        }
+    }
+
+    private static void _closeQuietly(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.example.camera.tool;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.os.Build;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the capture pipeline under a share of the heap instead of catching OutOfMemoryError.
+ * The heap limit is the smaller of Runtime.maxMemory() and the memory class of the device,
+ * the budget is a fraction of it. What is left of the budget after the memory used
+ * outside of running decodes is the headroom.
+ * <p/>
+ * Under pressure quality goes down in a fixed order: a decode is subsampled more,
+ * then decodes wait for each other, and a picture size is taken smaller only
+ * if its JPEG alone does not fit. Every such decision goes to the listener
+ * and is counted as Telemetry.Metric.MEMORY_DOWNGRADE.
+ */
+public class MemoryGovernor {
+
+    public enum Decision {
+        /** requested and granted are pixels */
+        PICTURE_SIZE,
+        /** requested and granted are inSampleSize */
+        DECODE_SAMPLE_SIZE,
+        /** requested and granted are decodes running at once */
+        CONCURRENT_DECODES
+    }
+
+    public static class Downgrade {
+        public final Decision decision;
+        public final long requested;
+        public final long granted;
+        public final long headroomBytes;
+
+        Downgrade(Decision decision, long requested, long granted, long headroomBytes) {
+            this.decision = decision;
+            this.requested = requested;
+            this.granted = granted;
+            this.headroomBytes = headroomBytes;
+        }
+
+        @Override
+        public String toString() {
+            return decision + " " + requested + " -> " + granted +
+                    ", headroom " + (headroomBytes >> 10) + "KB";
+        }
+    }
+
+    /**
+     * Called on the thread which has made the decision
+     */
+    public interface Listener {
+        void onDowngrade(Downgrade downgrade);
+    }
+
+    // camera JPEGs are 2-3 bits per pixel, counted generously
+    private static final double JPEG_BYTES_PER_PIXEL = 0.5;
+    // the decoded Bitmap and one rotated or scaled copy
+    private static final int DECODE_COPIES = 2;
+    private static final int ARGB_BYTES = 4;
+
+    private final long mHeapLimitBytes;
+    private volatile float mFraction;
+    private volatile Listener mListener = null;
+    private final AtomicInteger mDowngradeCount = new AtomicInteger();
+
+    private long mReservedBytes = 0;
+    private int mDecodeCount = 0;
+
+    /**
+     * @param fraction of Runtime.maxMemory() the pipeline may take at peak, e.g. 0.5
+     */
+    public MemoryGovernor(float fraction) {
+        this(Runtime.getRuntime().maxMemory(), fraction);
+    }
+
+    /**
+     * The limit takes the memory class of the device into account, largeHeap included
+     */
+    public MemoryGovernor(Context context, float fraction) {
+        this(getHeapLimitBytes(context), fraction);
+    }
+
+    public MemoryGovernor(long heapLimitBytes, float fraction) {
+        if (heapLimitBytes <= 0) throw new IllegalArgumentException("heapLimitBytes must be positive");
+        mHeapLimitBytes = heapLimitBytes;
+        setFraction(fraction);
+    }
+
+    public static long getHeapLimitBytes(Context context) {
+        long limit = Runtime.getRuntime().maxMemory();
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am == null) return limit;
+        int memoryClassMb = am.getMemoryClass();
+        if (Build.VERSION.SDK_INT >= 11 &&
+                (context.getApplicationInfo().flags & ApplicationInfo.FLAG_LARGE_HEAP) != 0)
+            memoryClassMb = am.getLargeMemoryClass();
+        return Math.min(limit, (long) memoryClassMb << 20);
+    }
+
+    public void setFraction(float fraction) {
+        if (fraction <= 0 || fraction > 1) throw new IllegalArgumentException("fraction must be in (0, 1]");
+        mFraction = fraction;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public long getHeapLimitBytes() {
+        return mHeapLimitBytes;
+    }
+
+    public long getBudgetBytes() {
+        return (long) (mHeapLimitBytes * mFraction);
+    }
+
+    public static long getUsedBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Budget left for decodes, the running ones included
+     */
+    public synchronized long getHeadroomBytes() {
+        return _getDecodeBudget();
+    }
+
+    public int getDowngradeCount() {
+        return mDowngradeCount.get();
+    }
+
+    public static long getJpegBytes(long pixels) {
+        return (long) (pixels * JPEG_BYTES_PER_PIXEL);
+    }
+
+    /**
+     * Peak memory of a decode with the given subsample, a transformed copy included
+     */
+    public static long getDecodeBytes(int width, int height, int sampleSize) {
+        return (long) (width / sampleSize) * (height / sampleSize) * ARGB_BYTES * DECODE_COPIES;
+    }
+
+    /**
+     * @param preferred index of the size the camera would use
+     * @return preferred if its JPEG fits, otherwise the biggest smaller one which fits
+     * or the smallest one
+     */
+    public int selectPictureSize(int[] widths, int[] heights, int preferred) {
+        long headroom = getHeadroomBytes();
+        long preferredPixels = (long) widths[preferred] * heights[preferred];
+        if (getJpegBytes(preferredPixels) <= headroom) return preferred;
+        int best = -1;
+        int smallest = preferred;
+        for (int i = 0; i < widths.length; i++) {
+            long pixels = (long) widths[i] * heights[i];
+            if (pixels < (long) widths[smallest] * heights[smallest]) smallest = i;
+            if (pixels >= preferredPixels || getJpegBytes(pixels) > headroom) continue;
+            if (best < 0 || pixels > (long) widths[best] * heights[best]) best = i;
+        }
+        if (best < 0) best = smallest;
+        _report(Decision.PICTURE_SIZE, preferredPixels, (long) widths[best] * heights[best], headroom);
+        return best;
+    }
+
+    /**
+     * @param sampleSize what the caller would use
+     * @return the smallest power of two subsample not below sampleSize whose decode fits
+     */
+    public int getDecodeSampleSize(int width, int height, int sampleSize) {
+        long headroom = getHeadroomBytes();
+        int granted = Math.max(1, sampleSize);
+        while (getDecodeBytes(width, height, granted) > headroom &&
+                (width / granted > 1 || height / granted > 1)) {
+            granted *= 2;
+        }
+        if (granted > sampleSize) _report(Decision.DECODE_SAMPLE_SIZE, sampleSize, granted, headroom);
+        return granted;
+    }
+
+    /**
+     * Waits while running decodes leave too little for this one,
+     * a decode alone never waits. Must be followed by endDecode(bytes)
+     */
+    public void beginDecode(long bytes) {
+        int wanted;
+        int granted;
+        long budget;
+        boolean waited = false;
+        synchronized (this) {
+            wanted = mDecodeCount + 1;
+            while (mDecodeCount > 0 && mReservedBytes + bytes > _getDecodeBudget()) {
+                waited = true;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            mReservedBytes += bytes;
+            mDecodeCount++;
+            granted = mDecodeCount;
+            budget = _getDecodeBudget();
+        }
+        // the listener is not called under the lock
+        if (waited) _report(Decision.CONCURRENT_DECODES, wanted, granted, budget);
+    }
+
+    public synchronized void endDecode(long bytes) {
+        mReservedBytes -= bytes;
+        mDecodeCount--;
+        notifyAll();
+    }
+
+    /**
+     * Budget minus the memory used outside of the running decodes
+     */
+    private long _getDecodeBudget() {
+        long outside = Math.max(0, getUsedBytes() - mReservedBytes);
+        return Math.max(0, getBudgetBytes() - outside);
+    }
+
+    private void _report(Decision decision, long requested, long granted, long headroom) {
+        mDowngradeCount.incrementAndGet();
+        Telemetry.getDefault().increment(Telemetry.Metric.MEMORY_DOWNGRADE);
+        Listener listener = mListener;
+        if (listener != null) listener.onDowngrade(new Downgrade(decision, requested, granted, headroom));
+    }
+}
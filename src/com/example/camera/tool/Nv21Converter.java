@@ -0,0 +1,178 @@
+package com.example.camera.tool;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * NV21 (camera preview) to ARGB_8888 pixels, optionally downscaled by an integer factor.
+ * The output is written into the caller's array in one pass, nothing is allocated per frame.
+ * BT.601 video range in 10 bit fixed point, no JPEG round trip through YuvImage.
+ * <p/>
+ * With a ForkJoinPool the rows are split into stripes converted on all its threads
+ * (ForkJoinPool exists on Android since API 21).
+ * Pure Java, see Utils.convertNv21() for Camera.Size.
+ */
+public class Nv21Converter {
+
+    // stripes smaller than that are not worth a fork
+    private static final int MIN_STRIPE_ROWS = 8;
+
+    private final ForkJoinPool mPool;
+
+    /**
+     * Converts on the calling thread
+     */
+    public Nv21Converter() {
+        this(null);
+    }
+
+    /**
+     * @param pool null - convert on the calling thread
+     */
+    public Nv21Converter(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    public static int getOutputWidth(int width, int sampleSize) {
+        return width / sampleSize;
+    }
+
+    public static int getOutputHeight(int height, int sampleSize) {
+        return height / sampleSize;
+    }
+
+    public int[] toArgb(byte[] nv21, int width, int height, int[] argb) {
+        return toArgb(nv21, width, height, 1, argb);
+    }
+
+    /**
+     * @param width      of the frame, must be even like every camera stream
+     * @param sampleSize 1 or more, luma is averaged over sampleSize x sampleSize pixels,
+     *                   chroma is taken from the middle of them
+     * @param argb       at least getOutputWidth() * getOutputHeight() long, rows are not padded
+     * @return argb
+     */
+    public int[] toArgb(byte[] nv21, int width, int height, int sampleSize, int[] argb) {
+        if (sampleSize < 1) throw new IllegalArgumentException("sampleSize must be 1 or more");
+        if (nv21.length < width * height * 3 / 2)
+            throw new IllegalArgumentException("nv21 is shorter than " + width + "x" + height);
+        int outWidth = getOutputWidth(width, sampleSize);
+        int outHeight = getOutputHeight(height, sampleSize);
+        if (argb.length < outWidth * outHeight)
+            throw new IllegalArgumentException("argb is shorter than " + outWidth + "x" + outHeight);
+
+        ForkJoinPool pool = mPool;
+        if (pool == null || pool.getParallelism() < 2 || outHeight < MIN_STRIPE_ROWS * 2) {
+            _convert(nv21, width, height, sampleSize, argb, outWidth, 0, outHeight);
+        } else {
+            // a few stripes per thread, so that a slow core does not hold the rest
+            int minRows = Math.max(MIN_STRIPE_ROWS, outHeight / (pool.getParallelism() * 4));
+            pool.invoke(new Stripe(nv21, width, height, sampleSize, argb, outWidth,
+                    0, outHeight, minRows));
+        }
+        return argb;
+    }
+
+    private static final class Stripe extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] mNv21;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mSampleSize;
+        private final int[] mArgb;
+        private final int mOutWidth;
+        private final int mFromRow;
+        private final int mToRow;
+        private final int mMinRows;
+
+        Stripe(byte[] nv21, int width, int height, int sampleSize, int[] argb, int outWidth,
+               int fromRow, int toRow, int minRows) {
+            mNv21 = nv21;
+            mWidth = width;
+            mHeight = height;
+            mSampleSize = sampleSize;
+            mArgb = argb;
+            mOutWidth = outWidth;
+            mFromRow = fromRow;
+            mToRow = toRow;
+            mMinRows = minRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (mToRow - mFromRow <= mMinRows) {
+                _convert(mNv21, mWidth, mHeight, mSampleSize, mArgb, mOutWidth, mFromRow, mToRow);
+                return;
+            }
+            int middle = (mFromRow + mToRow) >>> 1;
+            invokeAll(new Stripe(mNv21, mWidth, mHeight, mSampleSize, mArgb, mOutWidth,
+                            mFromRow, middle, mMinRows),
+                    new Stripe(mNv21, mWidth, mHeight, mSampleSize, mArgb, mOutWidth,
+                            middle, mToRow, mMinRows));
+        }
+    }
+
+    /**
+     * Output rows [fromRow, toRow)
+     */
+    private static void _convert(byte[] nv21, int width, int height, int sampleSize, int[] argb,
+                                 int outWidth, int fromRow, int toRow) {
+        // the chroma plane follows the luma one, buffers may be longer than the frame
+        int frameSize = width * height;
+        if (sampleSize == 1) _convertRows(nv21, width, frameSize, argb, fromRow, toRow);
+        else _downscaleRows(nv21, width, frameSize, sampleSize, argb, outWidth, fromRow, toRow);
+    }
+
+    private static void _convertRows(byte[] nv21, int width, int frameSize, int[] argb,
+                                     int fromRow, int toRow) {
+        for (int j = fromRow; j < toRow; j++) {
+            int yp = j * width;
+            int uvp = frameSize + (j >> 1) * width;
+            for (int i = 0; i < width; i += 2, uvp += 2) {
+                int v = (nv21[uvp] & 0xFF) - 128;
+                int u = (nv21[uvp + 1] & 0xFF) - 128;
+                argb[yp] = _argb(nv21[yp] & 0xFF, u, v);
+                yp++;
+                argb[yp] = _argb(nv21[yp] & 0xFF, u, v);
+                yp++;
+            }
+        }
+    }
+
+    private static void _downscaleRows(byte[] nv21, int width, int frameSize, int sampleSize,
+                                       int[] argb, int outWidth, int fromRow, int toRow) {
+        int area = sampleSize * sampleSize;
+        // sum * reciprocal >> 16 instead of a division per pixel
+        int reciprocal = (65536 + area / 2) / area;
+        int half = sampleSize / 2;
+        for (int oy = fromRow; oy < toRow; oy++) {
+            int top = oy * sampleSize;
+            int uvRow = frameSize + ((top + half) >> 1) * width;
+            int out = oy * outWidth;
+            for (int ox = 0, left = 0; ox < outWidth; ox++, left += sampleSize) {
+                int sum = 0;
+                for (int row = top * width + left, end = row + sampleSize * width; row < end; row += width) {
+                    for (int p = row, rowEnd = row + sampleSize; p < rowEnd; p++) {
+                        sum += nv21[p] & 0xFF;
+                    }
+                }
+                int uvp = uvRow + ((left + half) & ~1);
+                int v = (nv21[uvp] & 0xFF) - 128;
+                int u = (nv21[uvp + 1] & 0xFF) - 128;
+                argb[out + ox] = _argb((sum * reciprocal + 32768) >> 16, u, v);
+            }
+        }
+    }
+
+    private static int _argb(int y, int u, int v) {
+        int y1192 = y > 16 ? 1192 * (y - 16) : 0;
+        int r = y1192 + 1634 * v;
+        int g = y1192 - 833 * v - 400 * u;
+        int b = y1192 + 2066 * u;
+        r = r < 0 ? 0 : (r > 262143 ? 262143 : r);
+        g = g < 0 ? 0 : (g > 262143 ? 262143 : g);
+        b = b < 0 ? 0 : (b > 262143 ? 262143 : b);
+        return 0xFF000000 | ((r << 6) & 0xFF0000) | ((g >> 2) & 0xFF00) | ((b >> 10) & 0xFF);
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.camera.tool;
+
+/**
+ * Chooses a stream size out of the supported ones.
+ * Every candidate gets a cost, the cheapest one wins:
+ * aspect mismatch with the target is expensive (stretched or cropped output),
+ * being smaller than the surface costs more than being bigger,
+ * going over the pixel rate budget costs the most.
+ * Override {@link #score(int, int, Request)} for other rules.
+ * <p/>
+ * Sizes are compared in landscape, portrait requests are turned.
+ */
+public class SizeSelector {
+
+    public static class Request {
+        /** shown size, 0 - unknown, then the biggest size within the bounds is preferred */
+        public int surfaceWidth;
+        public int surfaceHeight;
+        public int maxWidth = Integer.MAX_VALUE;
+        public int maxHeight = Integer.MAX_VALUE;
+        /** stream which must keep the same aspect, e.g. the recorded video, 0 - none */
+        public int streamWidth;
+        public int streamHeight;
+        public int fps = 30;
+        /** 0 - no budget */
+        public long maxPixelsPerSecond;
+    }
+
+    public static class Decision {
+        public final int width;
+        public final int height;
+        public final double score;
+        /** |ln(candidate aspect / target aspect)|, 0 - exact */
+        public final double aspectError;
+        public final long pixelsPerSecond;
+
+        Decision(int width, int height, double score, double aspectError, long pixelsPerSecond) {
+            this.width = width;
+            this.height = height;
+            this.score = score;
+            this.aspectError = aspectError;
+            this.pixelsPerSecond = pixelsPerSecond;
+        }
+
+        /**
+         * NV21 bytes the camera delivers per second
+         */
+        public long getBytesPerSecond() {
+            return pixelsPerSecond * 3 / 2;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + " score=" + String.format("%.3f", score) +
+                    " aspectError=" + String.format("%.3f", aspectError) +
+                    " " + (getBytesPerSecond() >> 10) + "KB/s";
+        }
+    }
+
+    private double mAspectTolerance = 0.05;
+    private double mAspectWeight = 20;
+    private double mUndersizeWeight = 3;
+    private double mOversizeWeight = 1;
+    private double mOverBudgetWeight = 100;
+
+    /**
+     * @param tolerance aspect errors below it are free, 0.05 is about 3:2 vs 16:10
+     */
+    public void setAspectTolerance(double tolerance) {
+        mAspectTolerance = tolerance;
+    }
+
+    public void setWeights(double aspect, double undersize, double oversize, double overBudget) {
+        mAspectWeight = aspect;
+        mUndersizeWeight = undersize;
+        mOversizeWeight = oversize;
+        mOverBudgetWeight = overBudget;
+    }
+
+    /**
+     * @param widths  supported sizes, the same length as heights
+     * @return null if no size fits maxWidth x maxHeight
+     */
+    public Decision select(int[] widths, int[] heights, Request request) {
+        Decision best = null;
+        int maxLong = Math.max(request.maxWidth, request.maxHeight);
+        int maxShort = Math.min(request.maxWidth, request.maxHeight);
+        for (int i = 0; i < widths.length; i++) {
+            int w = widths[i];
+            int h = heights[i];
+            if (Math.max(w, h) > maxLong || Math.min(w, h) > maxShort) continue;
+            double score = score(w, h, request);
+            if (best == null || score < best.score ||
+                    (score == best.score && (long) w * h < (long) best.width * best.height))
+                best = _decision(w, h, score, request);
+        }
+        return best;
+    }
+
+    /**
+     * Cost of a size which has been chosen elsewhere, e.g. restored from a cache
+     */
+    public Decision evaluate(int width, int height, Request request) {
+        return _decision(width, height, score(width, height, request), request);
+    }
+
+    /**
+     * @return cost of the candidate, lower is better
+     */
+    protected double score(int width, int height, Request request) {
+        double score = 0;
+        double aspectError = getAspectError(width, height, request);
+        if (aspectError > mAspectTolerance) score += mAspectWeight * aspectError;
+
+        long pixels = (long) width * height;
+        long target = _getTargetPixels(request);
+        if (pixels < target) score += mUndersizeWeight * Math.log((double) target / pixels);
+        else score += mOversizeWeight * Math.log((double) pixels / target);
+
+        if (request.maxPixelsPerSecond > 0 &&
+                pixels * request.fps > request.maxPixelsPerSecond)
+            score += mOverBudgetWeight;
+        return score;
+    }
+
+    /**
+     * @return 0 if there is no target aspect
+     */
+    public static double getAspectError(int width, int height, Request request) {
+        int tw, th;
+        if (request.streamWidth > 0 && request.streamHeight > 0) {
+            tw = request.streamWidth;
+            th = request.streamHeight;
+        } else if (request.surfaceWidth > 0 && request.surfaceHeight > 0) {
+            tw = request.surfaceWidth;
+            th = request.surfaceHeight;
+        } else {
+            return 0;
+        }
+        return Math.abs(Math.log(_landscapeAspect(width, height) / _landscapeAspect(tw, th)));
+    }
+
+    private static double _landscapeAspect(int width, int height) {
+        return width >= height ? (double) width / height : (double) height / width;
+    }
+
+    private static long _getTargetPixels(Request request) {
+        if (request.surfaceWidth > 0 && request.surfaceHeight > 0) {
+            long pixels = (long) request.surfaceWidth * request.surfaceHeight;
+            // the surface can't be bigger than the bounds allow
+            return Math.min(pixels, (long) request.maxWidth * request.maxHeight);
+        }
+        return (long) request.maxWidth * request.maxHeight;
+    }
+
+    private Decision _decision(int width, int height, double score, Request request) {
+        return new Decision(width, height, score, getAspectError(width, height, request),
+                (long) width * height * request.fps);
+    }
+}
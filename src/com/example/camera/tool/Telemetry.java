@@ -0,0 +1,140 @@
+package com.example.camera.tool;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Process wide registry of hot path timings and counters.
+ * Every metric is a {@link Histogram}, counters record 1 and only their count matters.
+ * Recording allocates nothing, snapshots may be taken from any thread and exported as text.
+ */
+public class Telemetry {
+
+    public enum Metric {
+        CAMERA_OPEN_MS,
+        CONFIGURE_MS,
+        /** from startPreview() to the first frame */
+        COLD_START_MS,
+        /** see MultiCameraManager */
+        CAMERA_SWITCH_MS,
+        AUTOFOCUS_MS,
+        SHUTTER_TO_JPEG_MS,
+        ENCODE_MS,
+        WRITE_MS,
+        DECODE_MS,
+        ROTATE_MS,
+        WRITE_KB_PER_SEC,
+        /** preview fps is 1000000 / mean */
+        PREVIEW_FRAME_INTERVAL_US,
+        PREVIEW_FRAME_DROPPED,
+        RECORDER_PREPARE_MS,
+        RECORDER_START_MS,
+        RECORDER_STOP_MS,
+        /** see MemoryGovernor */
+        MEMORY_DOWNGRADE,
+        OOM_FALLBACK,
+        ERROR
+    }
+
+    /**
+     * Called on the thread where the error has happened
+     */
+    public interface ErrorListener {
+        void onError(String where, Throwable t);
+    }
+
+    public static class Snapshot {
+        private final Map<Metric, Histogram.Snapshot> mMetrics;
+
+        Snapshot(Map<Metric, Histogram.Snapshot> metrics) {
+            mMetrics = metrics;
+        }
+
+        public Histogram.Snapshot get(Metric metric) {
+            return mMetrics.get(metric);
+        }
+
+        /**
+         * One line per metric which has been recorded
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<Metric, Histogram.Snapshot> e : mMetrics.entrySet()) {
+                if (e.getValue().getCount() == 0) continue;
+                sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+    private static final Telemetry sDefault = new Telemetry();
+
+    public static Telemetry getDefault() {
+        return sDefault;
+    }
+
+    private final Histogram[] mHistograms = new Histogram[Metric.values().length];
+    private volatile boolean mEnabled = true;
+    private volatile ErrorListener mErrorListener = null;
+
+    public Telemetry() {
+        for (int i = 0; i < mHistograms.length; i++) mHistograms[i] = new Histogram();
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public void setErrorListener(ErrorListener listener) {
+        mErrorListener = listener;
+    }
+
+    public void record(Metric metric, long value) {
+        if (!mEnabled) return;
+        mHistograms[metric.ordinal()].record(value);
+    }
+
+    public void increment(Metric metric) {
+        record(metric, 1);
+    }
+
+    /**
+     * Records WRITE_KB_PER_SEC
+     */
+    public void recordThroughput(long bytes, long durationNs) {
+        if (!mEnabled || durationNs <= 0) return;
+        // in double, long recordings overflow bytes * 10^9
+        record(Metric.WRITE_KB_PER_SEC, (long) (bytes / 1024.0 * 1000000000.0 / durationNs));
+    }
+
+    /**
+     * Counts ERROR and hands the error to the listener
+     */
+    public void error(String where, Throwable t) {
+        increment(Metric.ERROR);
+        ErrorListener listener = mErrorListener;
+        if (listener != null) listener.onError(where, t);
+    }
+
+    public Histogram getHistogram(Metric metric) {
+        return mHistograms[metric.ordinal()];
+    }
+
+    public Snapshot snapshot() {
+        return snapshot(false);
+    }
+
+    /**
+     * @param reset start counting from scratch, e.g. after every upload
+     */
+    public Snapshot snapshot(boolean reset) {
+        Map<Metric, Histogram.Snapshot> metrics = new EnumMap<Metric, Histogram.Snapshot>(Metric.class);
+        for (Metric metric : Metric.values()) {
+            Histogram histogram = mHistograms[metric.ordinal()];
+            metrics.put(metric, histogram.snapshot());
+            if (reset) histogram.reset();
+        }
+        return new Snapshot(metrics);
+    }
+}
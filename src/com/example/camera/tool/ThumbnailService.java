@@ -0,0 +1,498 @@
+package com.example.camera.tool;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Process;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thumbnails of captured videos and pictures, extracted once per version of a file.
+ * A request goes to the memory LRU (byte budget, keyed by path so that the calling
+ * thread does not touch the file system), then to the disk cache (JPEGs named
+ * after path, length and modification time), then to Utils.extractThumbnail()
+ * on a worker. Requests for a file which is already being processed join the running job.
+ * The newest requests are served first, so rows scrolled into view
+ * do not wait behind the ones already scrolled away.
+ */
+public class ThumbnailService {
+
+    public interface Callback {
+        /**
+         * @param thumbnail null if the file can not be decoded
+         */
+        void onThumbnail(File file, Bitmap thumbnail);
+    }
+
+    private static final int DISK_QUALITY = 85;
+    private static final String DISK_SUFFIX = ".jpg";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mCacheDir;
+    private final int mMaxSize;
+    private final LinkedBlockingDeque<Runnable> mQueue = new LifoQueue();
+    private final ThreadPoolExecutor mExecutor;
+    private volatile Handler mResultHandler = null;
+
+    private final LinkedHashMap<String, Cached> mMemory =
+            new LinkedHashMap<String, Cached>(64, 0.75f, true);
+    private long mMemoryBytes = 0;
+    private long mMaxMemoryBytes;
+    private final HashMap<String, Job> mPending = new HashMap<String, Job>();
+
+    private final Object mDiskLock = new Object();
+    /** file name -> bytes in the order of use, null until the directory has been listed */
+    private LinkedHashMap<String, Long> mDisk = null;
+    private long mDiskBytes = 0;
+    private final long mMaxDiskBytes;
+
+    private int mMemoryHitCount = 0;
+    private int mDiskHitCount = 0;
+    private int mExtractCount = 0;
+    private int mJoinedCount = 0;
+
+    /**
+     * 256 pixel thumbnails, 1/8 of the heap, 64 MB on disk, 2 workers
+     */
+    public ThumbnailService(File cacheDir) {
+        this(cacheDir, 256, Runtime.getRuntime().maxMemory() / 8, 64L << 20, 2);
+    }
+
+    /**
+     * @param maxSize        of the longer side
+     * @param maxMemoryBytes decoded thumbnails kept in memory
+     * @param maxDiskBytes   JPEGs kept in cacheDir, 0 - no disk cache
+     */
+    public ThumbnailService(File cacheDir, int maxSize, long maxMemoryBytes,
+                            long maxDiskBytes, int threads) {
+        if (maxSize <= 0 || threads <= 0)
+            throw new IllegalArgumentException("maxSize and threads must be positive");
+        if (maxMemoryBytes < 0 || maxDiskBytes < 0)
+            throw new IllegalArgumentException("budgets must not be negative");
+        mCacheDir = cacheDir;
+        mMaxSize = maxSize;
+        mMaxMemoryBytes = maxMemoryBytes;
+        mMaxDiskBytes = maxDiskBytes;
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                mQueue, new WorkerFactory());
+    }
+
+    /**
+     * @param handler results are posted to it, null - results are delivered on worker threads
+     */
+    public void setResultHandler(Handler handler) {
+        mResultHandler = handler;
+    }
+
+    /**
+     * A memory hit is delivered right away on the calling thread, the file is not
+     * looked at: a rewritten file needs invalidate() or load() with its length and time
+     */
+    public void load(File file, Callback callback) {
+        _load(file, null, callback);
+    }
+
+    /**
+     * The memory hit is used only for this version of the file,
+     * e.g. length and time from a MediaStore query
+     */
+    public void load(File file, long length, long lastModified, Callback callback) {
+        _load(file, _version(length, lastModified), callback);
+    }
+
+    /**
+     * @return thumbnail from the memory cache or null, nothing is loaded
+     */
+    public synchronized Bitmap getCached(File file) {
+        Cached cached = mMemory.get(file.getAbsolutePath());
+        return cached == null ? null : cached.mBitmap;
+    }
+
+    /**
+     * The file has been rewritten, the memory cache forgets it
+     */
+    public synchronized void invalidate(File file) {
+        Cached cached = mMemory.remove(file.getAbsolutePath());
+        if (cached != null) mMemoryBytes -= BitmapPool.sizeOf(cached.mBitmap);
+    }
+
+    /**
+     * The callback is not called, the job is dropped if nobody else waits for it
+     * and it has not started yet
+     */
+    public void cancel(File file, Callback callback) {
+        String key = file.getAbsolutePath();
+        synchronized (this) {
+            Job job = mPending.get(key);
+            if (job == null) return;
+            job.mCallbacks.remove(callback);
+            if (job.mCallbacks.isEmpty() && mQueue.remove(job)) mPending.remove(key);
+        }
+    }
+
+    public synchronized void setMaxMemoryBytes(long bytes) {
+        mMaxMemoryBytes = bytes;
+        _trimMemory(bytes);
+    }
+
+    /**
+     * Evicted Bitmaps are not recycled, they may still be shown
+     */
+    public synchronized void trimMemory(long bytes) {
+        _trimMemory(bytes);
+    }
+
+    public synchronized void clearMemory() {
+        _trimMemory(0);
+    }
+
+    public synchronized long getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    public long getDiskBytes() {
+        synchronized (mDiskLock) {
+            return mDiskBytes;
+        }
+    }
+
+    public synchronized int getMemoryHitCount() {
+        return mMemoryHitCount;
+    }
+
+    public synchronized int getDiskHitCount() {
+        return mDiskHitCount;
+    }
+
+    public synchronized int getExtractCount() {
+        return mExtractCount;
+    }
+
+    /**
+     * Requests which have joined a job for the same file
+     */
+    public synchronized int getJoinedCount() {
+        return mJoinedCount;
+    }
+
+    /**
+     * Queued jobs are dropped, their callbacks get null
+     */
+    public void shutdown() {
+        for (Runnable job : mExecutor.shutdownNow()) _fail((Job) job);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ThumbnailService{memory=" + mMemoryBytes + "/" + mMaxMemoryBytes +
+                ", disk=" + getDiskBytes() + "/" + mMaxDiskBytes +
+                ", memoryHits=" + mMemoryHitCount + ", diskHits=" + mDiskHitCount +
+                ", extracted=" + mExtractCount + ", joined=" + mJoinedCount + "}";
+    }
+
+    private void _load(File file, String version, Callback callback) {
+        String key = file.getAbsolutePath();
+        Bitmap bmp = null;
+        Job job;
+        synchronized (this) {
+            Cached cached = mMemory.get(key);
+            if (cached != null && (version == null || version.equals(cached.mVersion))) {
+                mMemoryHitCount++;
+                bmp = cached.mBitmap;
+                job = null;
+            } else {
+                job = mPending.get(key);
+                if (job != null) {
+                    job.mCallbacks.add(callback);
+                    mJoinedCount++;
+                    return;
+                }
+                job = new Job(file, key);
+                job.mCallbacks.add(callback);
+                mPending.put(key, job);
+            }
+        }
+        if (bmp != null) {
+            callback.onThumbnail(file, bmp);
+            return;
+        }
+        // the job would stay in mPending for good
+        if (mExecutor.isShutdown()) {
+            _fail(job);
+            return;
+        }
+        try {
+            mExecutor.execute(job);
+        } catch (RejectedExecutionException e) {
+            // shut down meanwhile
+            _fail(job);
+        }
+    }
+
+    private void _fail(Job job) {
+        final List<Callback> callbacks;
+        synchronized (this) {
+            mPending.remove(job.mKey);
+            callbacks = new ArrayList<Callback>(job.mCallbacks);
+        }
+        _deliver(job.mFile, null, callbacks);
+    }
+
+    private static class Cached {
+        final Bitmap mBitmap;
+        final String mVersion;
+
+        Cached(Bitmap bitmap, String version) {
+            mBitmap = bitmap;
+            mVersion = version;
+        }
+    }
+
+    private class Job implements Runnable {
+        final File mFile;
+        /** absolute path */
+        final String mKey;
+        final List<Callback> mCallbacks = new ArrayList<Callback>(1);
+
+        Job(File file, String key) {
+            mFile = file;
+            mKey = key;
+        }
+
+        /**
+         * The job always leaves mPending, its callbacks get null if anything fails
+         */
+        @Override
+        public void run() {
+            Bitmap bmp = null;
+            boolean diskHit = false;
+            // a rewritten file gets a new disk entry
+            String version = _version(mFile.length(), mFile.lastModified());
+            try {
+                String name = _diskName(mKey + '|' + version);
+                bmp = _readDisk(name);
+                diskHit = bmp != null;
+                if (!diskHit) {
+                    bmp = Utils.extractThumbnail(mFile, mMaxSize);
+                    if (bmp != null) _writeDisk(name, bmp);
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                Telemetry.getDefault().error("ThumbnailService.get", e);
+                bmp = null;
+            } finally {
+                final List<Callback> callbacks;
+                synchronized (ThumbnailService.this) {
+                    if (diskHit) mDiskHitCount++;
+                    else mExtractCount++;
+                    mPending.remove(mKey);
+                    if (bmp != null) _putMemory(mKey, new Cached(bmp, version));
+                    callbacks = new ArrayList<Callback>(mCallbacks);
+                }
+                _deliver(mFile, bmp, callbacks);
+            }
+        }
+    }
+
+    private void _deliver(final File file, final Bitmap bmp, final List<Callback> callbacks) {
+        if (callbacks.isEmpty()) return;
+        Runnable delivery = new Runnable() {
+            @Override
+            public void run() {
+                for (Callback callback : callbacks) callback.onThumbnail(file, bmp);
+            }
+        };
+        Handler handler = mResultHandler;
+        if (handler == null) delivery.run();
+        else handler.post(delivery);
+    }
+
+    private static String _version(long length, long lastModified) {
+        return length + "|" + lastModified;
+    }
+
+    private void _putMemory(String key, Cached cached) {
+        Cached old = mMemory.put(key, cached);
+        if (old != null) mMemoryBytes -= BitmapPool.sizeOf(old.mBitmap);
+        mMemoryBytes += BitmapPool.sizeOf(cached.mBitmap);
+        _trimMemory(mMaxMemoryBytes);
+    }
+
+    private void _trimMemory(long bytes) {
+        Iterator<Cached> it = mMemory.values().iterator();
+        while (mMemoryBytes > bytes && it.hasNext()) {
+            mMemoryBytes -= BitmapPool.sizeOf(it.next().mBitmap);
+            it.remove();
+        }
+    }
+
+    /////  DISK CACHE  /////
+
+    private Bitmap _readDisk(String name) {
+        if (mMaxDiskBytes == 0) return null;
+        synchronized (mDiskLock) {
+            _loadDiskIndex();
+            if (mDisk.get(name) == null) return null;
+        }
+        File file = new File(mCacheDir, name);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        // no alpha in thumbnails, half the memory
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bmp;
+        try {
+            bmp = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        } catch (OutOfMemoryError e) {
+            Telemetry.getDefault().increment(Telemetry.Metric.OOM_FALLBACK);
+            return null;
+        }
+        if (bmp == null) {
+            // damaged or deleted from outside
+            synchronized (mDiskLock) {
+                _removeDisk(name);
+            }
+            return null;
+        }
+        // the order of use survives restarts
+        file.setLastModified(System.currentTimeMillis());
+        return bmp;
+    }
+
+    private void _writeDisk(String name, Bitmap bmp) {
+        if (mMaxDiskBytes == 0) return;
+        if (!mCacheDir.isDirectory() && !mCacheDir.mkdirs()) return;
+        File file = new File(mCacheDir, name);
+        File temp = new File(mCacheDir, name + TEMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            if (!bmp.compress(Bitmap.CompressFormat.JPEG, DISK_QUALITY, out)) return;
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) return;
+        } catch (IOException e) {
+            e.printStackTrace();
+            Telemetry.getDefault().error("ThumbnailService.writeDisk", e);
+            return;
+        } finally {
+            if (out != null) try {
+                out.close();
+            } catch (IOException e) {
+            }
+            temp.delete();
+        }
+        synchronized (mDiskLock) {
+            _loadDiskIndex();
+            Long old = mDisk.put(name, file.length());
+            if (old != null) mDiskBytes -= old;
+            mDiskBytes += file.length();
+            Iterator<Map.Entry<String, Long>> it = mDisk.entrySet().iterator();
+            while (mDiskBytes > mMaxDiskBytes && it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                new File(mCacheDir, eldest.getKey()).delete();
+                mDiskBytes -= eldest.getValue();
+                it.remove();
+            }
+        }
+    }
+
+    private void _removeDisk(String name) {
+        Long size = mDisk.remove(name);
+        if (size != null) mDiskBytes -= size;
+        new File(mCacheDir, name).delete();
+    }
+
+    /**
+     * Called under mDiskLock, lists the directory once
+     */
+    private void _loadDiskIndex() {
+        if (mDisk != null) return;
+        mDisk = new LinkedHashMap<String, Long>(256, 0.75f, true);
+        mDiskBytes = 0;
+        File[] files = mCacheDir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // the process has died while writing
+                file.delete();
+            } else if (name.endsWith(DISK_SUFFIX)) {
+                long length = file.length();
+                mDisk.put(name, length);
+                mDiskBytes += length;
+            }
+        }
+    }
+
+    private static String _diskName(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(hash.length * 2 + DISK_SUFFIX.length());
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.append(DISK_SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Workers take the most recent request first
+     */
+    private static class LifoQueue extends LinkedBlockingDeque<Runnable> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean offer(Runnable runnable) {
+            return offerFirst(runnable);
+        }
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger mCounter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "SimpleCamera-thumbnail-" + mCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
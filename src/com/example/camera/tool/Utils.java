@@ -1,12 +1,17 @@
 package com.example.camera.tool;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.hardware.Camera;
 import android.media.ExifInterface;
 import android.media.MediaMetadataRetriever;
 import android.os.Build;
 
 import java.io.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * User: Polikarpov V.
@@ -14,41 +19,141 @@ import java.io.*;
  */
 public class Utils {
 
+    private static final ExifOrientationReader sExifReader = new ExifOrientationReader(64);
+    private static Nv21Converter sNv21Converter = null;
+    private static ThumbnailService sThumbnailService = null;
+
     /**
-     * read EXIF and rotate if needed
+     * read EXIF and rotate if needed, mirrored orientations are mirrored as well
      *
      * @param pathToFile
      * @param bmp
-     * @return original Bitmap if no rotation
+     * @return original Bitmap if no rotation or no memory for it
      */
     public static Bitmap rotateBitmap(String pathToFile, Bitmap bmp) {
-        int angle = getRotationAngle(pathToFile);
-        return rotateBitmap(angle < 0 ? 0 : angle, bmp);
+        Bitmap oriented = _orientBitmap(sExifReader.getOrientation(new File(pathToFile)), bmp);
+        return oriented != null ? oriented : bmp;
     }
 
+    /**
+     * Mirror and rotation of the EXIF orientation in a single copy
+     *
+     * @return null if there is no memory for the copy, bmp is untouched then
+     */
+    private static Bitmap _orientBitmap(int orientation, Bitmap bmp) {
+        if (!JpegExif.isMirrored(orientation))
+            return tryRotateBitmap(JpegExif.getRotation(orientation), bmp);
+        if (bmp == null) return null;
+        try {
+            Matrix matrix = new Matrix();
+            matrix.preScale(-1f, 1f);
+            matrix.postRotate(JpegExif.getRotation(orientation));
+            return Bitmap.createBitmap(bmp, 0, 0,
+                    bmp.getWidth(), bmp.getHeight(), matrix, false);
+        } catch (OutOfMemoryError e) {
+            Telemetry.getDefault().increment(Telemetry.Metric.OOM_FALLBACK);
+            return null;
+        }
+    }
+
+    /**
+     * @return 0, 90, 180 or 270, -1 if the image is mirrored, see rotateBitmap(String, Bitmap)
+     */
     public static int getRotationAngle(String pathToFile) {
-        int rotationAngle = 0;
+        return JpegExif.orientationToRotation(sExifReader.getOrientation(new File(pathToFile)));
+    }
+
+    /**
+     * @param jpeg e.g. from Camera.PictureCallback, nothing is read from disk
+     * @return 0, 90, 180 or 270, -1 if the image is mirrored
+     */
+    public static int getRotationAngle(byte[] jpeg) {
+        return JpegExif.orientationToRotation(ExifOrientationReader.readOrientation(jpeg));
+    }
+
+    /**
+     * Shared cache of EXIF orientations, see getRotationAngle
+     */
+    public static ExifOrientationReader getExifReader() {
+        return sExifReader;
+    }
+
+    /**
+     * write EXIF orientation
+     *
+     * @param pathToFile
+     * @param rotationAngle 0, 90, 180 or 270
+     * @return false if EXIF could not be saved
+     */
+    public static boolean setRotationAngle(String pathToFile, int rotationAngle) {
+        int orientation;
+        switch (rotationAngle) {
+            case 90: orientation = ExifInterface.ORIENTATION_ROTATE_90; break;
+            case 180: orientation = ExifInterface.ORIENTATION_ROTATE_180; break;
+            case 270: orientation = ExifInterface.ORIENTATION_ROTATE_270; break;
+            default: orientation = ExifInterface.ORIENTATION_NORMAL; break;
+        }
         try {
             ExifInterface exif = new ExifInterface(pathToFile);
-            int rotation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
-                    ExifInterface.ORIENTATION_NORMAL);
-            if (rotation != ExifInterface.ORIENTATION_NORMAL) {
-                if (ExifInterface.ORIENTATION_ROTATE_90 == rotation) {
-                    rotationAngle = 90;
-                } else if (ExifInterface.ORIENTATION_ROTATE_180 == rotation) {
-                    rotationAngle = 180;
-                } else if (ExifInterface.ORIENTATION_ROTATE_270 == rotation) {
-                    rotationAngle = 270;
-                } else {
-                    rotationAngle = -1;
-                }
-            }
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(orientation));
+            exif.saveAttributes();
+            // the file may keep its length and modification time
+            _invalidate(new File(pathToFile));
+            return true;
         } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Lossless rotation of a JPEG file, only EXIF orientation is changed,
+     * see JpegExif
+     *
+     * @param in
+     * @param out           may be the same as in
+     * @param rotationAngle clockwise, 0, 90, 180 or 270
+     * @return false if the file could not be written
+     */
+    public static boolean rotateJpeg(File in, File out, int rotationAngle) {
+        try {
+            JpegExif.rotate(in, out, rotationAngle);
+            _invalidate(out);
+            return true;
+        } catch (IOException e) {
+            return false;
         }
-        return rotationAngle;
     }
 
+    /**
+     * Lossless mirroring of a JPEG file, only EXIF orientation is changed
+     *
+     * @param in
+     * @param out      may be the same as in
+     * @param vertical
+     * @return false if the file could not be written
+     */
+    public static boolean mirrorJpeg(File in, File out, boolean vertical) {
+        try {
+            JpegExif.mirror(in, out, vertical);
+            _invalidate(out);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return original Bitmap if no rotation or no memory for it, see tryRotateBitmap
+     */
     public static Bitmap rotateBitmap(int rotationAngle, Bitmap bmp) {
+        Bitmap rotated = tryRotateBitmap(rotationAngle, bmp);
+        return rotated != null ? rotated : bmp;
+    }
+
+    /**
+     * @return null if there is no memory for the rotated copy, bmp is untouched then
+     */
+    public static Bitmap tryRotateBitmap(int rotationAngle, Bitmap bmp) {
         if (rotationAngle == 0) return bmp;
         if (bmp != null) {
             try {
@@ -57,41 +162,390 @@ public class Utils {
                 bmp = Bitmap.createBitmap(bmp, 0, 0,
                         bmp.getWidth(), bmp.getHeight(),
                         matrix, false);
-            } catch (OutOfMemoryError ignored) {
+            } catch (OutOfMemoryError e) {
+                Telemetry.getDefault().increment(Telemetry.Metric.OOM_FALLBACK);
+                return null;
             }
         } // ROTATION
         return bmp;
     }
 
+    /**
+     * @return original Bitmap if there is no memory for the copy, see tryMirrorBitmap
+     */
     public static Bitmap mirrorBitmap(Bitmap bmp, boolean vertical) {
+        Bitmap mirrored = tryMirrorBitmap(bmp, vertical);
+        return mirrored != null ? mirrored : bmp;
+    }
+
+    /**
+     * @return null if there is no memory for the mirrored copy, bmp is untouched then
+     */
+    public static Bitmap tryMirrorBitmap(Bitmap bmp, boolean vertical) {
         if (bmp != null) {
             try {
                 Matrix matrix = new Matrix();
-                matrix.preScale(vertical ? 1f : -1f, vertical ? -1f : -1f);
+                matrix.preScale(vertical ? 1f : -1f, vertical ? -1f : 1f);
                 bmp = Bitmap.createBitmap(bmp, 0, 0,
                         bmp.getWidth(), bmp.getHeight(), matrix, false);
             } catch (OutOfMemoryError e) {
+                Telemetry.getDefault().increment(Telemetry.Metric.OOM_FALLBACK);
+                return null;
             }
         }
         return bmp;
     }
 
-    public static boolean copyFile(File source, File dest) {
-        InputStream is = null;
-        OutputStream os = null;
+    /**
+     * Rotate into a Bitmap taken from the pool, bmp is given back to the pool.
+     *
+     * @return null if there is no memory even after the pool is cleared, bmp is untouched then
+     */
+    public static Bitmap rotateBitmap(int rotationAngle, Bitmap bmp, BitmapPool pool) {
+        if (bmp == null) return null;
+        if (rotationAngle == 0) return bmp;
+        int width = bmp.getWidth();
+        int height = bmp.getHeight();
+        Matrix matrix = new Matrix();
+        matrix.postRotate(rotationAngle);
+        if (rotationAngle == 90) {
+            matrix.postTranslate(height, 0);
+        } else if (rotationAngle == 180) {
+            matrix.postTranslate(width, height);
+        } else if (rotationAngle == 270) {
+            matrix.postTranslate(0, width);
+        } else {
+            throw new IllegalArgumentException("rotationAngle must be 0, 90, 180 or 270");
+        }
+        boolean swap = rotationAngle != 180;
+        return _transform(bmp, swap ? height : width, swap ? width : height, matrix, pool);
+    }
+
+    /**
+     * Mirror into a Bitmap taken from the pool, bmp is given back to the pool.
+     *
+     * @return null if there is no memory even after the pool is cleared, bmp is untouched then
+     */
+    public static Bitmap mirrorBitmap(Bitmap bmp, boolean vertical, BitmapPool pool) {
+        if (bmp == null) return null;
+        int width = bmp.getWidth();
+        int height = bmp.getHeight();
+        Matrix matrix = new Matrix();
+        if (vertical) {
+            matrix.preScale(1f, -1f);
+            matrix.postTranslate(0, height);
+        } else {
+            matrix.preScale(-1f, 1f);
+            matrix.postTranslate(width, 0);
+        }
+        return _transform(bmp, width, height, matrix, pool);
+    }
+
+    private static Bitmap _transform(Bitmap bmp, int width, int height,
+                                     Matrix matrix, BitmapPool pool) {
+        Bitmap.Config config = bmp.getConfig() != null ? bmp.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap dst;
         try {
-            is = new FileInputStream(source);
-            os = new FileOutputStream(dest);
-            byte[] buffer = new byte[1024];
-            int length;
-            while ((length = is.read(buffer)) > 0) {
-                os.write(buffer, 0, length);
+            dst = pool.get(width, height, config);
+        } catch (OutOfMemoryError e) {
+            Telemetry.getDefault().increment(Telemetry.Metric.OOM_FALLBACK);
+            pool.clear();
+            try {
+                dst = pool.get(width, height, config);
+            } catch (OutOfMemoryError ex) {
+                return null;
             }
+        }
+        Canvas canvas = new Canvas(dst);
+        canvas.drawBitmap(bmp, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        pool.put(bmp);
+        return dst;
+    }
+
+    /**
+     * NV21 preview frame to ARGB pixels, see Nv21Converter.
+     * Stripes are converted on all cores where ForkJoinPool exists.
+     *
+     * @param size       of the frame as the camera delivers it, SimpleCamera.getPreviewFrameSize(),
+     *                   getPreviewSize() is turned in portrait
+     * @param sampleSize 1 or more
+     * @param argb       null or at least (width / sampleSize) * (height / sampleSize) long
+     * @return argb or a new array
+     */
+    public static int[] convertNv21(byte[] nv21, Camera.Size size, int sampleSize, int[] argb) {
+        if (argb == null) argb = new int[Nv21Converter.getOutputWidth(size.width, sampleSize) *
+                Nv21Converter.getOutputHeight(size.height, sampleSize)];
+        return _getNv21Converter().toArgb(nv21, size.width, size.height, sampleSize, argb);
+    }
+
+    /**
+     * NV21 preview frame to a Bitmap taken from the pool
+     *
+     * @param argb null or a reused array, see convertNv21
+     * @return null if there is no memory even after the pool is cleared
+     */
+    public static Bitmap nv21ToBitmap(byte[] nv21, Camera.Size size, int sampleSize,
+                                      int[] argb, BitmapPool pool) {
+        int width = Nv21Converter.getOutputWidth(size.width, sampleSize);
+        int height = Nv21Converter.getOutputHeight(size.height, sampleSize);
+        argb = convertNv21(nv21, size, sampleSize, argb);
+        Bitmap bmp = pool.getDirty(width, height, Bitmap.Config.ARGB_8888);
+        if (bmp == null) {
+            try {
+                bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            } catch (OutOfMemoryError e) {
+                Telemetry.getDefault().increment(Telemetry.Metric.OOM_FALLBACK);
+                pool.clear();
+                try {
+                    bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                } catch (OutOfMemoryError ex) {
+                    return null;
+                }
+            }
+        }
+        bmp.setPixels(argb, 0, width, 0, 0, width, height);
+        return bmp;
+    }
+
+    private static synchronized Nv21Converter _getNv21Converter() {
+        if (sNv21Converter == null) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            if (Build.VERSION.SDK_INT >= 21 && cores > 1)
+                sNv21Converter = new Nv21Converter(new ForkJoinPool(cores));
+            else sNv21Converter = new Nv21Converter();
+        }
+        return sNv21Converter;
+    }
+
+    /**
+     * Decode JPEG so that it fits maxWidth x maxHeight.
+     * Bounds are read first and the JPEG is decoded with inSampleSize,
+     * the full size Bitmap never exists.
+     *
+     * @return null if JPEG can not be decoded
+     */
+    public static Bitmap decodeJpeg(byte[] data, int maxWidth, int maxHeight) {
+        BitmapFactory.Options options = _decodeBounds(data);
+        if (options == null) return null;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(
+                options.outWidth, options.outHeight, maxWidth, maxHeight);
+        return scaleToFit(BitmapFactory.decodeByteArray(data, 0, data.length, options),
+                maxWidth, maxHeight);
+    }
+
+    /**
+     * @return bmp if it fits maxWidth x maxHeight, otherwise a scaled copy, bmp is recycled then
+     */
+    public static Bitmap scaleToFit(Bitmap bmp, int maxWidth, int maxHeight) {
+        if (bmp == null) return null;
+        if (bmp.getWidth() <= maxWidth && bmp.getHeight() <= maxHeight) return bmp;
+
+        float scale = Math.min((float) maxWidth / bmp.getWidth(),
+                (float) maxHeight / bmp.getHeight());
+        int scaledWidth = Math.max(1, Math.round(bmp.getWidth() * scale));
+        int scaledHeight = Math.max(1, Math.round(bmp.getHeight() * scale));
+        Bitmap scaled = Bitmap.createScaledBitmap(bmp, scaledWidth, scaledHeight, true);
+        if (scaled != bmp) bmp.recycle();
+        return scaled;
+    }
+
+    /**
+     * Decode JPEG with the smallest subsample giving not more than maxPixels
+     *
+     * @return null if JPEG can not be decoded
+     */
+    public static Bitmap decodeJpeg(byte[] data, long maxPixels) {
+        BitmapFactory.Options options = _decodeBounds(data);
+        if (options == null) return null;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(
+                options.outWidth, options.outHeight, maxPixels);
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    /**
+     * The same as decodeJpeg(data, maxPixels) but the Bitmap is decoded
+     * into a pooled one of the same size if there is such
+     */
+    public static Bitmap decodeJpeg(byte[] data, long maxPixels, BitmapPool pool) {
+        BitmapFactory.Options options = _decodeBounds(data);
+        if (options == null) return null;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(
+                options.outWidth, options.outHeight, maxPixels);
+        // before KitKat inBitmap works only without subsampling
+        if (Build.VERSION.SDK_INT >= 19 ||
+                (Build.VERSION.SDK_INT >= 11 && options.inSampleSize == 1)) {
+            options.inMutable = true;
+            int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+            int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+            options.inBitmap = pool.getDirty(width, height, Bitmap.Config.ARGB_8888);
+        }
+        if (options.inBitmap != null) {
+            try {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            } catch (IllegalArgumentException e) {
+                // the decoder has not accepted it
+                pool.put(options.inBitmap);
+                options.inBitmap = null;
+            }
+        }
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    /**
+     * The biggest subsample which is still not smaller than maxWidth x maxHeight,
+     * the rest is done by scaling
+     */
+    public static int calculateInSampleSize(int width, int height, int maxWidth, int maxHeight) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= maxWidth &&
+                height / (sampleSize * 2) >= maxHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    public static int calculateInSampleSize(int width, int height, long maxPixels) {
+        int sampleSize = 1;
+        while ((long) (width / sampleSize) * (height / sampleSize) > maxPixels &&
+                width / sampleSize > 1 && height / sampleSize > 1) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static BitmapFactory.Options _decodeBounds(byte[] data) {
+        if (data == null) return null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+        return options;
+    }
+
+    public static boolean copyFile(File source, File dest) {
+        return copyFile(source, dest, null);
+    }
+
+    /**
+     * dest appears only when the copy is complete, see FileTransfer
+     */
+    public static boolean copyFile(File source, File dest, FileTransfer.ProgressListener listener) {
+        try {
+            FileTransfer.copy(source, dest, listener);
             return true;
-        } catch (Exception e) {
+        } catch (IOException e) {
             return false;
+        }
+    }
+
+    /**
+     * Shared service, the first call decides where the disk cache is
+     *
+     * @param cacheDir e.g. new File(context.getCacheDir(), "thumbnails")
+     */
+    public static synchronized ThumbnailService getThumbnailService(File cacheDir) {
+        if (sThumbnailService == null) sThumbnailService = new ThumbnailService(cacheDir);
+        return sThumbnailService;
+    }
+
+    /**
+     * The file has been rewritten, cached orientation and thumbnail are stale
+     */
+    private static void _invalidate(File file) {
+        sExifReader.invalidate(file);
+        ThumbnailService thumbnails;
+        synchronized (Utils.class) {
+            thumbnails = sThumbnailService;
+        }
+        if (thumbnails != null) thumbnails.invalidate(file);
+    }
+
+    public static boolean isVideoFile(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".mp4") || name.endsWith(".3gp") || name.endsWith(".webm") ||
+                name.endsWith(".mkv") || name.endsWith(".ts");
+    }
+
+    /**
+     * Downscaled frame of a video or a subsampled image turned by its EXIF orientation,
+     * no caching, see ThumbnailService
+     *
+     * @param maxSize of the longer side
+     * @return null if the file can not be decoded
+     */
+    public static Bitmap extractThumbnail(File file, int maxSize) {
+        Bitmap bmp = isVideoFile(file) ?
+                _extractVideoFrame(file, maxSize) : _decodeImage(file, maxSize);
+        if (bmp == null) return null;
+        int longSide = Math.max(bmp.getWidth(), bmp.getHeight());
+        if (longSide <= maxSize) return bmp;
+        float scale = (float) maxSize / longSide;
+        Bitmap scaled = Bitmap.createScaledBitmap(bmp,
+                Math.max(1, Math.round(bmp.getWidth() * scale)),
+                Math.max(1, Math.round(bmp.getHeight() * scale)), true);
+        if (scaled != bmp) bmp.recycle();
+        return scaled;
+    }
+
+    private static Bitmap _extractVideoFrame(File file, int maxSize) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(file.getAbsolutePath());
+            if (Build.VERSION.SDK_INT >= 27) {
+                // scaled by the decoder, the full frame never exists
+                return retriever.getScaledFrameAtTime(-1, MediaMetadataRetriever.OPTION_CLOSEST_SYNC,
+                        maxSize, maxSize);
+            }
+            return retriever.getFrameAtTime();
+        } catch (RuntimeException e) {
+            return null;
+        } catch (OutOfMemoryError e) {
+            Telemetry.getDefault().increment(Telemetry.Metric.OOM_FALLBACK);
+            return null;
         } finally {
-            try { is.close(); os.close(); } catch (Exception e) {}
+            try {
+                retriever.release();
+            } catch (RuntimeException e) {
+            }
+        }
+    }
+
+    private static Bitmap _decodeImage(File file, int maxSize) {
+        String path = file.getAbsolutePath();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                (long) maxSize * maxSize);
+        Bitmap bmp;
+        try {
+            bmp = BitmapFactory.decodeFile(path, options);
+        } catch (OutOfMemoryError e) {
+            Telemetry.getDefault().increment(Telemetry.Metric.OOM_FALLBACK);
+            return null;
+        }
+        if (bmp == null) return null;
+        int orientation = sExifReader.getOrientation(file);
+        if (JpegExif.getRotation(orientation) == 0 && !JpegExif.isMirrored(orientation)) return bmp;
+        Bitmap rotated = _orientBitmap(orientation, bmp);
+        if (rotated == null) bmp.recycle();
+        return rotated;
+    }
+
+    /**
+     * rename if possible, otherwise copy and delete the source
+     */
+    public static boolean moveFile(File source, File dest, FileTransfer.ProgressListener listener) {
+        try {
+            FileTransfer.move(source, dest, listener);
+            return true;
+        } catch (IOException e) {
+            return false;
         }
     }
 }